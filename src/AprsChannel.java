@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -52,8 +52,32 @@ public abstract class AprsChannel extends Channel
      
      
      
+     /** 
+      * Return the duplicate checker. If init is not called, it is created with 
+      * default settings when first used. 
+      */
+     public static DupCheck getDupCheck() {
+        DupCheck d = _dupCheck;
+        if (d != null)
+           return d;
+        synchronized (AprsChannel.class) {
+           if (_dupCheck == null)
+              _dupCheck = new DupCheck();
+           return _dupCheck;
+        }
+     }
+     
+     
+     
      public static void init(ServerAPI api) {
         _logPackets = api.getBoolProperty("channel.logpackets", true);
+        _dupCheck = new DupCheck(api);
+        
+        /* Receivers are called by worker threads, unless workers is 0 */
+        int nworkers = api.getIntProperty("channel.ingest.workers", 0);
+        if (nworkers > 0 && _pipeline == null)
+            _pipeline = new PacketPipeline(api, nworkers, 
+                 api.getIntProperty("channel.ingest.queue", 2000));
         canSend = true;
         String myCall = api.getProperty("default.mycall", "NOCALL").toUpperCase();
         if ("NOCALL".equals(myCall))
@@ -99,10 +123,18 @@ public abstract class AprsChannel extends Channel
      * two is sufficient: A parser and an igate.
      */
     transient private List<Receiver> _rcv = new LinkedList<Receiver>(); 
+    transient private volatile Receiver[] _rcvArr = new Receiver[0];
     transient protected PrintWriter  _out = null; 
     protected String _rfilter = null;
 
-    public static DupCheck  _dupCheck = new DupCheck();
+    /* Created by init. See getDupCheck */
+    public static volatile DupCheck _dupCheck = null;
+    public static PacketPipeline _pipeline = null;
+    
+    private static final Metrics.Histogram _decodeTime = Metrics.histogram("channel.decode");
+    private static final Metrics.Histogram _dedupTime = Metrics.histogram("channel.dedup");
+    private static final Metrics.Counter _nPackets = Metrics.counter("channel.packets");
+    private static final Metrics.Counter _nDuplicates = Metrics.counter("channel.duplicates");
     public static final String _rx_encoding = "UTF-8"; 
                   /* was "X-UTF-8_with_ISO-8859-1_fallback"; */
     public static final String _tx_encoding = "UTF-8";
@@ -145,28 +177,7 @@ public abstract class AprsChannel extends Channel
      * Reverse the order of the elements of the path. 
      */ 
     public static String getReversePath(String path)
-    {
-       String result = "";
-       Stack<String> st = new Stack<String>();
-       String[] p = path.split(",");
-       boolean dflag = false;
-       for(String x : p) {       
-          if (x.length() < 1)
-             break;
-          if (x.charAt(x.length()-1) == '*') {
-             x = x.substring(0, x.length()-1);
-             dflag = true;
-          }
-          else if (dflag) 
-             break;
-          if (!x.matches("(WIDE|TRACE|NOR|SAR|(TCP[A-Z0-9]{2})|NOGATE|RFONLY|NO_TX).*")) 
-             st.push(x);   
-       }
-       if (dflag) 
-          while (!st.empty())
-            result += (st.pop() + ",");
-       return result.length() == 0 ? "" : result.substring(0,result.length()-1);
-    }    
+       { return AprsPath.parse(path).getReversePath(); }
     
     
     
@@ -220,11 +231,15 @@ public abstract class AprsChannel extends Channel
     /**
      * Configure receivers. 
      */
-    public void addReceiver(Receiver r)
-       { if (r != null) _rcv.add(r); }
+    public synchronized void addReceiver(Receiver r) { 
+       if (r != null) _rcv.add(r); 
+       _rcvArr = _rcv.toArray(new Receiver[0]);
+    }
     
-    public void removeReceiver(Receiver r)
-       { if (r != null) _rcv.remove(r); }   
+    public synchronized void removeReceiver(Receiver r) { 
+       if (r != null) _rcv.remove(r); 
+       _rcvArr = _rcv.toArray(new Receiver[0]);
+    }   
     
     
 
@@ -293,7 +308,9 @@ public abstract class AprsChannel extends Channel
     { 
        if (packet == null || packet.length() < 1)
           return false; 
+       long t = System.nanoTime();
        AprsPacket p = AprsPacket.fromString(packet);
+       _decodeTime.since(t);
 
        return receivePacket(p, dup);
     }
@@ -324,16 +341,24 @@ public abstract class AprsChannel extends Channel
        if (_logPackets)
           _api.log().log(null, chId()+p);
        _heardPackets++;
-       dup = _dupCheck.checkPacket(p.from, p.to, p.report);
+       _nPackets.inc();
+       long t = System.nanoTime();
+       dup = getDupCheck().checkPacket(p.from, p.to, p.report);
+       _dedupTime.since(t);
        if (!dup) 
           /* Register heard, only for first instance of packet, not duplicates */
           regHeard(p);
-       else
+       else {
           _duplicates++;
+          _nDuplicates.inc();
+       }
           
        /* Pass the packet to registered receivers: Aprs-parser, igate, etc.. */
-       for (Receiver r: _rcv)
-           r.receivePacket(p, dup);
+       if (_pipeline != null)
+           _pipeline.submit(p, dup, _rcvArr);
+       else
+           for (Receiver r: _rcvArr)
+               r.receivePacket(p, dup);
        return !dup;
     }
     
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2012-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2012-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -14,7 +14,8 @@
  
 package no.polaric.aprsd;
 import java.util.*;
-import java.io.Serializable;
+import java.io.*;
+import no.polaric.aprsd.filter.Pred;
   
   
 /**
@@ -22,6 +23,8 @@ import java.io.Serializable;
  */
 public class AprsObject extends AprsPoint implements Serializable
 {
+    private static final long serialVersionUID = 9200310372828100757L;
+
     private static long _expiretime    = 1000 * 60 * 60 * 12;    // Default: 3 hour
     
     
@@ -48,7 +51,9 @@ public class AprsObject extends AprsPoint implements Serializable
      * Attributes of object/item record (APRS data)
      */
     private String    _ident; 
-    private Station   _owner; // FIXME: use ident instead
+    private Station   _owner; 
+    private transient String _ownerIdent;  /* Ident of owner when restored, until owner is set */
+    private transient String _ownerPath;   /* Path of owner, used by filters (see Pred.Path) */
     private boolean   _killed = false;
     private boolean   _timeless = false;
        /* If an object is timeless it also permanent, i.e. it allows other permanent objects 
@@ -74,12 +79,21 @@ public class AprsObject extends AprsPoint implements Serializable
     
     public String getIdent()
        { return _ident+'@'+
-           (_owner!= null ? _owner.getIdent() : "UNKNOWN"); }
+           (_owner!= null ? _owner.getIdent() : 
+              (_ownerIdent != null ? _ownerIdent : "UNKNOWN")); }
        
        
     public void setOwner(Station o)
        { _owner = o; }
        
+    
+    /** 
+     * Return the ident of the owner. A restored object has no owner (only its 
+     * ident) until it is set with setOwner.
+     */
+    public String getOwnerIdent()
+       { return (_owner != null ? _owner.getIdent() : _ownerIdent); }
+       
        
     public Station getOwner()
        { return _owner; }
@@ -148,9 +162,13 @@ public class AprsObject extends AprsPoint implements Serializable
         saveToTrail(ts, pd.pos, 0, 0, "(obj)");
         updatePosition(ts, pd.pos, pd.ambiguity);        
         setDescr(descr); 
-        _symbol = pd.symbol; 
-        _altsym = pd.symtab;
+        setSymbol(pd.symbol); 
+        setSymtab(pd.symtab);
         _killed = false;  
+        if (!Objects.equals(_owner.getPathInfo(), _ownerPath)) {
+            _ownerPath = _owner.getPathInfo();
+            inputChanged(Pred.IN_PATH);
+        }
         _owner.setUpdated(new Date());      
         _api.getDB().updateItem(this, prevpos);
     }
@@ -175,6 +193,40 @@ public class AprsObject extends AprsPoint implements Serializable
        { return !_killed && !expired(); }
        
        
+    /* 
+     * The owner is saved as its ident. Older versions saved a copy of 
+     * the owner station in '_owner'. 
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("_ident", String.class),
+        new ObjectStreamField("_owner", Station.class),
+        new ObjectStreamField("_ownerIdent", String.class),
+        new ObjectStreamField("_killed", boolean.class),
+        new ObjectStreamField("_timeless", boolean.class)
+    };
+    
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("_ident", _ident);
+        f.put("_ownerIdent", getOwnerIdent());
+        f.put("_killed", _killed);
+        f.put("_timeless", _timeless);
+        out.writeFields();
+    }
+    
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        _ident = (String) f.get("_ident", null);
+        _owner = (Station) f.get("_owner", null);
+        _ownerIdent = (String) f.get("_ownerIdent", null);
+        _killed = f.get("_killed", false);
+        _timeless = f.get("_timeless", false);
+    }
+    
+    
+    
     /**
      * Kill the object. Mark it for removal.
      */
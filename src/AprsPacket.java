@@ -13,7 +13,6 @@
  */
 
 package no.polaric.aprsd;
-import java.util.regex.*;
 import java.util.Date;
 
 
@@ -22,10 +21,6 @@ import java.util.Date;
  */ 
 public class AprsPacket implements Cloneable {
     
-    private static Pattern _ppat = Pattern.compile
-       ("([\\w\\-]+)>([\\w\\-]+)(((,[\\w\\-]+\\*?))*):(.*)");
-       
-       
     /* If packet is gated or routed elsewhere, the original via
      * can be saved in via_orig. If it is a thirdparty packet, more
      * info about source packet is in from_orig and to_orig.
@@ -36,6 +31,9 @@ public class AprsPacket implements Cloneable {
     public String from, to, msgto, via, report; 
     public String from_orig, to_orig, via_orig; 
     public boolean thirdparty = false; 
+    
+    /* Parsed path. Re-parsed if via is assigned a new string */
+    private AprsPath _path;
 
     
     public AprsPacket() 
@@ -43,6 +41,21 @@ public class AprsPacket implements Cloneable {
     
 
     
+    /**
+     * Return the parsed path (via). Null if via is null. 
+     */
+    public AprsPath getPath() {
+        String v = via; 
+        AprsPath p = _path;
+        if (v == null)
+            return null;
+        if (p == null || p.toString() != v) 
+            _path = p = AprsPath.parse(v);
+        return p;
+    }
+    
+    
+    
     @Override public AprsPacket clone() 
         { try { return (AprsPacket) super.clone();}
           catch (Exception e) {return null; } 
@@ -53,30 +66,100 @@ public class AprsPacket implements Cloneable {
      
     /**
      * Convert text string to packet structure. 
+     * This is a single-pass parser of the header. It accepts exactly the same 
+     * input as the regular expression: 
+     *   ([\w\-]+)>([\w\-]+)(((,[\w\-]+\*?))*):(.*)
+     * Only the resulting fields are allocated as strings. 
      */
-    public static AprsPacket fromString(String packet)
+    public static AprsPacket fromString(CharSequence packet)
     {
-        packet = packet.replace('\uffff', ' ');
         if (packet == null || packet.length() < 10)
            return null;
-        Matcher m = _ppat.matcher(packet);
-        if (m.matches())
-        {
-            AprsPacket p = new AprsPacket();
-            p.from_orig = p.from = m.group(1).trim().toUpperCase();
-            p.to_orig = p.to = m.group(2).trim().toUpperCase();
-            
-            p.via  = m.group(3);
-            p.report  = m.group(m.groupCount());
-                
-            /* Remove first comma in path */
-            if (p.via != null) 
-                  p.via = p.via.trim();
-            while (p.via != null && p.via.length() > 0 && p.via.charAt(0) == ',')
-                  p.via = p.via.substring(1);
-            return p;
+        int len = packet.length();
+        
+        /* Source callsign */
+        int i = _scanId(packet, 0, len);
+        if (i == 0 || i >= len || packet.charAt(i) != '>')
+            return null;
+        int fromEnd = i; 
+        
+        /* Destination */
+        int toStart = ++i;
+        i = _scanId(packet, i, len);
+        if (i == toStart || i >= len)
+            return null;
+        int toEnd = i;
+        
+        /* Path: (,id*?)* */
+        int viaStart = i;
+        while (i < len && packet.charAt(i) == ',') {
+            int hs = ++i;
+            i = _scanId(packet, i, len);
+            if (i == hs)
+                return null;
+            if (i < len && packet.charAt(i) == '*')
+                i++;
+        }
+        if (i >= len || packet.charAt(i) != ':')
+            return null;
+        int viaEnd = i++;
+        
+        /* Report. '.' in the regex does not match line terminators */
+        boolean ffff = false;
+        for (int j = i; j < len; j++) {
+            char c = packet.charAt(j);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+                return null;
+            if (c == '\uffff')
+                ffff = true;
+        }
+        
+        AprsPacket p = new AprsPacket();
+        p.from_orig = p.from = _upper(packet, 0, fromEnd);
+        p.to_orig = p.to = _upper(packet, toStart, toEnd);
+        
+        /* Path without the first comma */
+        p.via = (viaEnd > viaStart ? packet.subSequence(viaStart+1, viaEnd).toString() : "");
+        p.report = packet.subSequence(i, len).toString();
+        if (ffff)
+            p.report = p.report.replace('\uffff', ' ');
+        return p;
+    }
+    
+    
+    
+    /* Return the end of a sequence of [\w\-] characters starting at i */
+    private static int _scanId(CharSequence s, int i, int len) {
+        while (i < len) {
+            char c = s.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || 
+                (c >= '0' && c <= '9') || c == '_' || c == '-')
+                i++;
+            else
+                break;
+        }
+        return i;
+    }
+    
+    
+    
+    /* Substring converted to upper case. Only ASCII letters occur here */
+    private static String _upper(CharSequence s, int start, int end) {
+        char[] buf = null;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                if (buf == null) {
+                    buf = new char[end-start];
+                    for (int j = start; j < i; j++)
+                        buf[j-start] = s.charAt(j);
+                }
+                c -= 'a' - 'A';
+            }
+            if (buf != null)
+                buf[i-start] = c;
         }
-        return null;
+        return (buf == null ? s.subSequence(start, end).toString() : new String(buf));
     }
 
     
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -52,6 +52,42 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
      * Duplicate packets are only parsed wrt. path (infrastructure analysis)
      */
     public void receivePacket(AprsPacket p, boolean duplicate)
+    {
+        long t = System.nanoTime();
+        _receivePacket(p, duplicate);
+        _parseTime(p.type, duplicate).since(t);
+    }
+    
+    
+    
+    /* Parse time by report type */
+    private static final Metrics.Histogram 
+        _tStatus = Metrics.histogram("parser.status"),
+        _tPos    = Metrics.histogram("parser.position"),
+        _tObject = Metrics.histogram("parser.object"),
+        _tMicE   = Metrics.histogram("parser.mice"),
+        _tMsg    = Metrics.histogram("parser.message"),
+        _tTelem  = Metrics.histogram("parser.telemetry"),
+        _tOther  = Metrics.histogram("parser.other"),
+        _tDup    = Metrics.histogram("parser.duplicate");
+    
+    private static Metrics.Histogram _parseTime(char type, boolean duplicate) {
+        if (duplicate)
+            return _tDup;
+        return switch (type) {
+            case '>' -> _tStatus;
+            case '!', '=', '@', '/' -> _tPos;
+            case ';', ')' -> _tObject;
+            case '\'', '`' -> _tMicE;
+            case ':' -> _tMsg;
+            case 'T' -> _tTelem;
+            default -> _tOther;
+        };
+    }
+    
+    
+    
+    private void _receivePacket(AprsPacket p, boolean duplicate)
     {
         if (_api.getDB() == null)
            return; 
@@ -136,7 +172,7 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
         
         for (ReportHandler h:_subscribers)
             h.handlePacket(p);
-        parsePath(station, p.via, duplicate);   
+        parsePath(station, p.getPath(), duplicate);   
     }
 
     
@@ -144,26 +180,17 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
    /**
     * Parse path to get info about infrastructure.
     */    
-    private void parsePath(Station s, String path, boolean duplicate)
+    private void parsePath(Station s, AprsPath path, boolean duplicate)
     {
         if (path == null)
            return;
-        String[] pp = path.split(",");
-        int plen = pp.length;
-        int tindex = -1, i=0;
-        for (String x: pp) {
-           if (x.matches(".*\\*")) { 
-              tindex=i; 
-              pp[i] = x.substring(0, x.length()-1); 
-              break; 
-           }
-           i++;
-        }
+        int plen = path.length();
+        int tindex = path.lastUsed(), i;
         Station from = s;
         boolean skip = false;
         int n = 0;
         for (i=0; i<=tindex; i++) {
-            Station to = _api.getDB().getStation(pp[i], null);
+            Station to = _api.getDB().getStation(path.call(i), null);
             if ( to != null) {
                 n++; 
                 if (!skip) { 
@@ -174,17 +201,17 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
                    to.setWideDigi(true); /* Digi is WIDE */
                 from = to;
             }
-            else if (!pp[i].matches("(WIDE|TRACE|NOR|SAR).*"))
+            else if (!path.isGeneric(i))
                skip = true;
         }
         
         /* Has packet been gated through APRS-IS?
          * The last node in path is igate
          */
-        if ((plen >= 2) && pp[plen-2].matches("qA.")) 
+        if (path.isGated()) 
         {
            if (tindex == -1) {
-               Station to = _api.getDB().getStation(pp[plen-1], null);
+               Station to = _api.getDB().getStation(path.hop(plen-1), null);
                if (to != null) {
                     if (_api.getDB().getRoutes() !=null)
                         _api.getDB().getRoutes().addEdge(s.getIdent(), to.getIdent(), !duplicate);  
@@ -194,9 +221,9 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
            }
            else {
                Station last = null;
-               if (pp[tindex].matches("(WIDE|TRACE|NOR|SAR).*") && tindex > 0)
-                  last = _api.getDB().getStation(pp[tindex-1], null);
-               Station x = _api.getDB().getStation(pp[plen-1], null);
+               if (AprsPath.isGeneric(path.call(tindex)) && tindex > 0)
+                  last = _api.getDB().getStation(path.call(tindex-1), null);
+               Station x = _api.getDB().getStation(path.hop(plen-1), null);
                if (last != null && x != null) {
                   if (_api.getDB().getRoutes() != null)
                     _api.getDB().getRoutes().addEdge(last.getIdent(), x.getIdent(), !duplicate);
@@ -469,7 +496,7 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
        time = parseTimestamp(data.substring(0), true);
        ReportHandler.PosData pd = parseCompressedPos(data.substring(3));
        
-       if (AprsChannel._dupCheck.checkTS(station.getIdent(), time))
+       if (AprsChannel.getDupCheck().checkTS(station.getIdent(), time))
             return;
             
        _api.log().debug("AprsParser", "Extra report accepted: "+time);
@@ -499,7 +526,7 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
 
             
             Date time = new Date(tsx);
-            if (AprsChannel._dupCheck.checkTS(station.getIdent(), time)) {
+            if (AprsChannel.getDupCheck().checkTS(station.getIdent(), time)) {
                 _api.log().debug("AprsParser", "Extra report type 2 DUPLICATE: "+time);
                 continue;
             }
@@ -534,7 +561,7 @@ public class AprsParser extends AprsUtil implements AprsChannel.Receiver
             data = data.substring(8);
             
             /* A duplicate check on timestamp itself */
-            if (AprsChannel._dupCheck.checkTS(station.getIdent(), time)) 
+            if (AprsChannel.getDupCheck().checkTS(station.getIdent(), time)) 
                 return; 
          }
          else
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+
+
+
+/**
+ * Digipeater path of an APRS packet, parsed once. Used by the parser
+ * (infrastructure analysis), the igate and the channels instead of
+ * matching regular expressions on the path string for each packet.
+ * Instances are immutable.
+ */
+public class AprsPath
+{
+    private final String   _path;
+    private final String[] _hops;     /* Hops as in the path, including the '*' */
+    private final int      _used;     /* Index of the first hop marked as used, or -1 */
+    private final int      _qidx;     /* Index of q-construct (qAx), or -1 */
+
+    /* Flags for the whole path string */
+    private final boolean  _noInet, _noRf, _tcpipUsed;
+
+
+
+    private AprsPath(String path)
+    {
+        _path = path;
+        _hops = _split(path);
+
+        int used = -1, qidx = -1;
+        for (int i=0; i<_hops.length; i++) {
+            String x = _hops[i];
+            if (used == -1 && x.length() > 0 && x.charAt(x.length()-1) == '*')
+                used = i;
+            if (qidx == -1 && _isQ(x))
+                qidx = i;
+        }
+        _used = used;
+        _qidx = qidx;
+
+        boolean nogate = path.contains("NOGATE") || path.contains("RFONLY") || path.contains("NO_TX");
+        _noInet = nogate || _hasTcpXX(path);
+        _noRf = nogate || path.contains("TCPXX");
+        _tcpipUsed = path.contains("TCPIP*") || path.contains("TCPXX*");
+    }
+
+
+
+    /**
+     * Parse a path. Return null if path is null.
+     */
+    public static AprsPath parse(String path)
+        { return (path == null ? null : new AprsPath(path)); }
+
+
+
+    /* Split on comma. Like String.split(","), trailing empty strings are removed */
+    private static String[] _split(String path)
+    {
+        int n = 1;
+        for (int i=0; i<path.length(); i++)
+            if (path.charAt(i) == ',')
+                n++;
+        if (n == 1)
+            return new String[] {path};
+        String[] res = new String[n];
+        int start = 0, k = 0;
+        for (int i=0; i<=path.length(); i++)
+            if (i == path.length() || path.charAt(i) == ',') {
+                res[k++] = path.substring(start, i);
+                start = i+1;
+            }
+        while (n > 0 && res[n-1].length() == 0)
+            n--;
+        if (n == res.length)
+            return res;
+        String[] r = new String[n];
+        System.arraycopy(res, 0, r, 0, n);
+        return r;
+    }
+
+
+
+    /* True if path contains TCP followed by two [A-Z0-9] */
+    private static boolean _hasTcpXX(String path)
+    {
+        int i = path.indexOf("TCP");
+        while (i >= 0 && i+5 <= path.length()) {
+            if (_isAlnum(path.charAt(i+3)) && _isAlnum(path.charAt(i+4)))
+                return true;
+            i = path.indexOf("TCP", i+1);
+        }
+        return false;
+    }
+
+    private static boolean _isAlnum(char c)
+        { return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'); }
+
+
+
+    private static boolean _isQ(String call)
+        { return call.length() == 3 && call.startsWith("qA"); }
+
+
+
+    /**
+     * Return true if the callsign is a generic alias (WIDE, TRACE, NOR or SAR).
+     */
+    public static boolean isGeneric(String call)
+        { return call.startsWith("WIDE") || call.startsWith("TRACE") ||
+                 call.startsWith("NOR") || call.startsWith("SAR"); }
+
+
+    /* Generic alias or TCPxx, NOGATE, RFONLY, NO_TX. Not part of a reverse path */
+    private static boolean _isSpecial(String call)
+        { return isGeneric(call) || call.startsWith("NOGATE") || call.startsWith("RFONLY") ||
+                 call.startsWith("NO_TX") ||
+                 (call.startsWith("TCP") && call.length() >= 5 && _isAlnum(call.charAt(3)) && _isAlnum(call.charAt(4))); }
+
+
+
+    /** Return the number of hops. */
+    public int length()
+        { return _hops.length; }
+
+
+    /** Return hop as it appears in the path (possibly with '*'). */
+    public String hop(int i)
+        { return _hops[i]; }
+
+
+    /** Return callsign of hop (without the '*' marking it as used). */
+    public String call(int i) {
+        String x = _hops[i];
+        return (x.length() > 0 && x.charAt(x.length()-1) == '*' ? x.substring(0, x.length()-1) : x);
+    }
+
+
+    /** Return true if hop is a generic alias. */
+    public boolean isGeneric(int i)
+        { return isGeneric(_hops[i]); }
+
+
+    /** Return index of the first hop marked as used ('*'), or -1 if none. */
+    public int lastUsed()
+        { return _used; }
+
+
+    /** Return index of the first q-construct (qAx), or -1 if none. */
+    public int qIndex()
+        { return _qidx; }
+
+
+    /** Return true if the second last hop is a q-construct (the last hop is the igate). */
+    public boolean isGated()
+        { return _hops.length >= 2 && _isQ(_hops[_hops.length-2]); }
+
+
+    /** Return true if path contains TCPxx, NOGATE, RFONLY or NO_TX (not to be gated to internet). */
+    public boolean noInet()
+        { return _noInet; }
+
+
+    /** Return true if path contains TCPXX, NOGATE, RFONLY or NO_TX (not to be gated to RF). */
+    public boolean noRf()
+        { return _noRf; }
+
+
+    /** Return true if packet has been on APRS-IS (TCPIP* or TCPXX*). */
+    public boolean isTcpIpUsed()
+        { return _tcpipUsed; }
+
+
+
+    /**
+     * Return the reverse of the part of the path that has been used, without
+     * generic aliases. Empty string if no hops are used.
+     */
+    public String getReversePath()
+    {
+        String[] st = new String[_hops.length];
+        int n = 0;
+        boolean dflag = false;
+        for (String x : _hops) {
+            if (x.length() < 1)
+                break;
+            if (x.charAt(x.length()-1) == '*') {
+                x = x.substring(0, x.length()-1);
+                dflag = true;
+            }
+            else if (dflag)
+                break;
+            if (!_isSpecial(x))
+                st[n++] = x;
+        }
+        if (!dflag || n == 0)
+            return "";
+        StringBuilder res = new StringBuilder(st[--n]);
+        while (n > 0)
+            res.append(',').append(st[--n]);
+        return res.toString();
+    }
+
+
+    public String toString()
+        { return _path; }
+}
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -15,6 +15,7 @@
 package no.polaric.aprsd;
 import java.util.*;
 import java.io.Serializable;
+import no.polaric.aprsd.filter.Pred;
   
 
 /**
@@ -22,6 +23,8 @@ import java.io.Serializable;
  */
 public abstract class AprsPoint extends TrackerPoint implements Serializable, Cloneable
 {  
+    private static final long serialVersionUID = -4157082798585373245L;
+
     private   static SymTable  _symTab;
     
     protected char        _symbol = '\0'; 
@@ -67,12 +70,20 @@ public abstract class AprsPoint extends TrackerPoint implements Serializable, Cl
        { return _altsym;}
    
    
-    public void setSymbol(char s)
-       { _symbol = s; }
+    public synchronized void setSymbol(char s) { 
+       if (s == _symbol)
+          return;
+       _symbol = s; 
+       inputChanged(Pred.IN_SYMBOL); 
+    }
    
    
-    public void setSymtab(char s)
-       { _altsym = s; }
+    public synchronized void setSymtab(char s) { 
+       if (s == _altsym)
+          return;
+       _altsym = s; 
+       inputChanged(Pred.IN_SYMBOL); 
+    }
     
     
     public String getIcon(boolean override)
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+
+/**
+ * Spatial index of rectangular areas, e.g. the map views of clients. Used to
+ * find the subscribers that may be interested in a change at a given position,
+ * without testing all of them. Areas are registered in the cells of a grid that
+ * they overlap. Areas that overlap many cells are kept in a separate list and
+ * are always returned as candidates.
+ *
+ * Lookups return candidates: Subscribers whose area (extended by the given
+ * factor) is in the same cell as the position. The caller is expected to do
+ * the exact test.
+ */
+public class AreaIndex<T>
+{
+    private static final int MAX_CELLS = 256;
+
+    private final double _cellsize, _ext;
+    private final int    _ncols, _nrows;
+    private final ConcurrentHashMap<Integer, Set<T>> _cells = new ConcurrentHashMap<Integer, Set<T>>();
+    private final Set<T> _wide = ConcurrentHashMap.newKeySet();
+
+    /* Cells each subscriber is registered in. WIDE means it is in the wide list */
+    private final ConcurrentHashMap<T, int[]> _where = new ConcurrentHashMap<T, int[]>();
+    private static final int[] WIDE = new int[0];
+
+
+
+    /**
+     * @param cellsize Size of grid cells (degrees).
+     * @param ext Factor with which to extend areas in each direction. For example,
+     *   1.0 means that the area is extended by its width to the left and right
+     *   and by its height up and down.
+     */
+    public AreaIndex(double cellsize, double ext)
+    {
+        if (cellsize <= 0 || cellsize > 90)
+            cellsize = 2;
+        _cellsize = cellsize;
+        _ext = ext;
+        _ncols = (int) Math.ceil(360 / cellsize);
+        _nrows = (int) Math.ceil(180 / cellsize);
+    }
+
+
+
+    private int col(double lng)
+        { return Math.floorMod((int) Math.floor((lng + 180) / _cellsize), _ncols); }
+
+    private int row(double lat)
+        { return Math.max(0, Math.min(_nrows-1, (int) Math.floor((lat + 90) / _cellsize))); }
+
+    private int key(int col, int row)
+        { return row * _ncols + col; }
+
+
+
+    /**
+     * Register (or move) the area of a subscriber.
+     * @param x Subscriber.
+     * @param uleft Upper left corner of area.
+     * @param lright Lower right corner of area.
+     */
+    public void put(T x, LatLng uleft, LatLng lright)
+    {
+        if (x == null)
+            return;
+        if (uleft == null || lright == null) {
+            remove(x);
+            return;
+        }
+        double x1 = uleft.getLng(), x2 = lright.getLng();
+        if (x2 < x1)
+            x2 += 360;     /* Area crosses the date line */
+        double y1 = lright.getLat(), y2 = uleft.getLat();
+        double xoff = _ext * (x2 - x1), yoff = _ext * (y2 - y1);
+        x1 -= xoff; x2 += xoff;
+        y1 -= yoff; y2 += yoff;
+
+        int[] keys = WIDE;
+        int w = (int) Math.floor((x2 + 180) / _cellsize) - (int) Math.floor((x1 + 180) / _cellsize) + 1;
+        int r1 = row(y1), r2 = row(y2);
+        if (x2 - x1 < 360 && (long) w * (r2 - r1 + 1) <= MAX_CELLS) {
+            int c1 = col(x1);
+            keys = new int[w * (r2 - r1 + 1)];
+            int i = 0;
+            for (int c = 0; c < w; c++)
+                for (int r = r1; r <= r2; r++)
+                    keys[i++] = key((c1 + c) % _ncols, r);
+        }
+
+        final int[] k = keys;
+        _where.compute(x, (s, prev) -> {
+            _unregister(s, prev);
+            if (k == WIDE)
+                _wide.add(s);
+            else
+                for (int kk : k)
+                    _cells.computeIfAbsent(kk, z -> ConcurrentHashMap.newKeySet()).add(s);
+            return k;
+        });
+    }
+
+
+
+    private void _unregister(T x, int[] keys)
+    {
+        if (keys == null)
+            return;
+        if (keys == WIDE)
+            _wide.remove(x);
+        else
+            for (int k : keys) {
+                Set<T> c = _cells.get(k);
+                if (c != null)
+                    c.remove(x);
+            }
+    }
+
+
+
+    /**
+     * Remove a subscriber.
+     */
+    public void remove(T x)
+    {
+        if (x == null)
+            return;
+        _where.computeIfPresent(x, (s, prev) -> {
+            _unregister(s, prev);
+            return null;
+        });
+    }
+
+
+
+    /**
+     * Remove subscribers that are not in the given collection.
+     */
+    public void retainAll(Collection<T> xs)
+    {
+        for (T x : _where.keySet())
+            if (!xs.contains(x))
+                remove(x);
+    }
+
+
+
+    /**
+     * Call f for each subscriber that may be interested in the given position.
+     */
+    public void forEach(LatLng pos, Consumer<T> f)
+    {
+        for (T x : _wide)
+            f.accept(x);
+        if (pos == null)
+            return;
+        Set<T> c = _cells.get(key(col(pos.getLng()), row(pos.getLat())));
+        if (c != null)
+            for (T x : c)
+                f.accept(x);
+    }
+
+
+
+    /** Return the number of subscribers. */
+    public int size()
+        { return _where.size(); }
+}
@@ -1,6 +1,6 @@
- 
-/* 
- * Copyright (C) 2010-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+
+/*
+ * Copyright (C) 2010-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -12,94 +12,336 @@
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
  */
- 
+
 package no.polaric.aprsd;
 import java.util.*;
-import java.text.*;
+import java.util.concurrent.atomic.LongAdder;
 
 
 
 /**
- * Duplicate checking.
+ * Duplicate checking. Packets are identified by a 64 bit fingerprint of
+ * from, to and report. Fingerprints are kept in bounded tables, split into
+ * stripes with a lock each, so that channels do not block each other.
+ *
+ * Realtime reports are duplicates if seen within the last 30 seconds.
+ * Timestamped reports are duplicates if seen before, as long as they
+ * are remembered (the oldest are dropped when the table is full).
+ *
+ * Alternatively, fingerprints can be kept in cuckoo filters (see
+ * DuplicateChecker). This uses much less memory, at the cost of a small
+ * rate of false positives. Realtime reports are then remembered for
+ * 15 to 30 seconds.
  */
-public class DupCheck 
+public class DupCheck
 {
-     private static final Boolean TRUE = true;
      private static final long RT_TIMEOUT = 1000 * 30; /* 30 seconds */
-     
-     private LinkedHashMap<String, Date> _realtime  = 
-        new LinkedHashMap<String, Date>(); 
-        
-     private LinkedHashMap<String, Boolean> _timestamped = 
-        new LinkedHashMap<String, Boolean>() 
-        {
-            protected boolean removeEldestEntry(Map.Entry e)
-                { return size() > 75000; }
-        };
-    
-     
-     private void removeOldRtEntries()
+
+
+     /**
+      * Set of fingerprints.
+      */
+     private interface Store {
+         /* Return true if key is in the set. If not, add it */
+         boolean checkAndAdd(long key, long now);
+         int size();
+     }
+
+
+     /**
+      * Bounded set of fingerprints with the time they were added. Open addressing
+      * with linear probing. A ring buffer keeps the insertion order, so the oldest
+      * entries can be expired or dropped. Not thread-safe.
+      */
+     private static class Stripe
+     {
+         private final long[] _keys, _times;   /* Hash table. Key 0 means empty slot */
+         private final int    _mask;
+         private final long[] _rkeys, _rtimes; /* Ring buffer in insertion order */
+         private int          _head = 0, _count = 0;
+
+
+         Stripe(int max) {
+             int cap = Integer.highestOneBit(Math.max(16, max * 4 / 3)) * 2;
+             _keys = new long[cap];
+             _times = new long[cap];
+             _mask = cap - 1;
+             _rkeys = new long[max];
+             _rtimes = new long[max];
+         }
+
+
+         private int find(long key) {
+             int i = (int) key & _mask;
+             while (_keys[i] != 0 && _keys[i] != key)
+                 i = (i + 1) & _mask;
+             return i;
+         }
+
+
+         /* Remove entry at slot i, and move following entries back to fill the gap */
+         private void delete(int i) {
+             int j = i;
+             while (true) {
+                 j = (j + 1) & _mask;
+                 if (_keys[j] == 0)
+                     break;
+                 int home = (int) _keys[j] & _mask;
+                 /* Move entry at j if its home slot is not in the (cyclic) range i+1..j */
+                 if (((j - home) & _mask) >= ((j - i) & _mask)) {
+                     _keys[i] = _keys[j];
+                     _times[i] = _times[j];
+                     i = j;
+                 }
+             }
+             _keys[i] = 0;
+         }
+
+
+         /* Drop the oldest entry. If it has been re-added later, the table entry is kept */
+         private void evict() {
+             long key = _rkeys[_head];
+             int i = find(key);
+             if (_keys[i] == key && _times[i] == _rtimes[_head])
+                 delete(i);
+             _head = (_head + 1) % _rkeys.length;
+             _count--;
+         }
+
+
+         /**
+          * Return true if key is in the set (and not older than timeout).
+          * If not, add it. A timeout of 0 means that entries do not expire.
+          */
+         boolean checkAndAdd(long key, long now, long timeout) {
+             if (timeout > 0)
+                 while (_count > 0 && now - _rtimes[_head] > timeout)
+                     evict();
+
+             int i = find(key);
+             if (_keys[i] == key && (timeout == 0 || now - _times[i] <= timeout))
+                 return true;
+
+             if (_count == _rkeys.length) {
+                 evict();
+                 i = find(key);
+             }
+             _keys[i] = key;
+             _times[i] = now;
+             int tail = (_head + _count) % _rkeys.length;
+             _rkeys[tail] = key;
+             _rtimes[tail] = now;
+             _count++;
+             return false;
+         }
+
+
+         int size()
+            { return _count; }
+     }
+
+
+
+     /**
+      * Stripes selected by the upper bits of the key. The lower bits are used
+      * in the tables.
+      */
+     private static class StripedStore implements Store
+     {
+         private final Stripe[] _stripes;
+         private final long _timeout;
+
+         StripedStore(int nstripes, int size, long timeout) {
+             _stripes = new Stripe[nstripes];
+             for (int i=0; i<nstripes; i++)
+                 _stripes[i] = new Stripe(Math.max(1, size / nstripes));
+             _timeout = timeout;
+         }
+
+         public boolean checkAndAdd(long key, long now) {
+             Stripe s = _stripes[(int) (key >>> 40) & (_stripes.length - 1)];
+             synchronized(s) {
+                 return s.checkAndAdd(key, now, _timeout);
+             }
+         }
+
+         public int size() {
+             int n = 0;
+             for (Stripe s : _stripes)
+                 synchronized(s) { n += s.size(); }
+             return n;
+         }
+     }
+
+
+     /**
+      * Cuckoo filters. 
+      */
+     private static class FilterStore implements Store
+     {
+         private final DuplicateChecker _filter;
+
+         FilterStore(int capacity, double fpp, long period) {
+             _filter = new DuplicateChecker(capacity, fpp, period);
+         }
+
+         public boolean checkAndAdd(long key, long now)
+             { return _filter.checkAndAdd(key); }
+
+         /* Values in the remembered generations. Some may be older than the timeout */
+         public int size()
+             { return (int) Math.min(Integer.MAX_VALUE, _filter.size()); }
+     }
+
+
+
+     private final Store _realtime, _timestamped;
+     private final LongAdder _hits = new LongAdder(), _misses = new LongAdder();
+
+
+
+     public DupCheck()
+        { this(16, 50000, 75000); }
+
+
+     /**
+      * Configure from properties:
+      * dupcheck.backend is 'table' (default) or 'cuckoo'.
+      * dupcheck.stripes, dupcheck.realtime.size and dupcheck.timestamped.size.
+      * dupcheck.fpp is the false positive rate of cuckoo filters.
+      */
+     public DupCheck(ServerAPI api)
      {
-          Iterator<Date> it = _realtime.values().iterator();
-          Date now = new Date();
-          while (it.hasNext()) {
-              Date x = it.next();
-              if (now.getTime() > x.getTime() + RT_TIMEOUT) 
-                 it.remove();
-              else
-                 return;
-          }
-     } 
-     
-     
-     private static DateFormat _dhmsFormat = new SimpleDateFormat("ddHHmmss");
-     static {
-        _dhmsFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        int rtsize = api.getIntProperty("dupcheck.realtime.size", 50000);
+        int tssize = api.getIntProperty("dupcheck.timestamped.size", 75000);
+        if ("cuckoo".equals(api.getProperty("dupcheck.backend", "table"))) {
+            double fpp = Double.parseDouble(api.getProperty("dupcheck.fpp", "0.0001"));
+            _realtime = new FilterStore(rtsize, fpp, RT_TIMEOUT / 2);
+            _timestamped = new FilterStore(tssize, fpp, 0);
+            api.log().info("DupCheck", "Using cuckoo filters. False positive rate="+fpp);
+        }
+        else {
+            int n = _nstripes(api.getIntProperty("dupcheck.stripes", 16));
+            _realtime = new StripedStore(n, rtsize, RT_TIMEOUT);
+            _timestamped = new StripedStore(n, tssize, 0);
+        }
      }
-     
-     public synchronized boolean checkTS(String from, Date ts)
+
+
+     /**
+      * @param nstripes Number of stripes (rounded up to a power of two).
+      * @param rtsize Max number of realtime reports to remember.
+      * @param tssize Max number of timestamped reports to remember.
+      */
+     public DupCheck(int nstripes, int rtsize, int tssize)
      {
-         String composed = from + ":"+_dhmsFormat.format(ts);
-         if (_timestamped.containsKey(composed))
-             return true;
-         _timestamped.put(composed, TRUE);
-         return  false;
+        int n = _nstripes(nstripes);
+        _realtime = new StripedStore(n, rtsize, RT_TIMEOUT);
+        _timestamped = new StripedStore(n, tssize, 0);
      }
-     
-     
+
+
+     /**
+      * Use cuckoo filters.
+      * @param rtsize Max number of realtime reports to remember.
+      * @param tssize Max number of timestamped reports to remember.
+      * @param fpp False positive rate.
+      */
+     public DupCheck(int rtsize, int tssize, double fpp)
+     {
+        _realtime = new FilterStore(rtsize, fpp, RT_TIMEOUT / 2);
+        _timestamped = new FilterStore(tssize, fpp, 0);
+     }
+
+
+     private static int _nstripes(int n)
+        { return (n <= 1 ? 1 : Integer.highestOneBit(n - 1) * 2); }
+
+
+
+     /* FNV-1a hash of the string, continued from h */
+     private static long hash(long h, String s) {
+         if (s != null)
+            for (int i=0; i<s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+         h ^= 0xffff;  /* separator */
+         return h * 0x100000001b3L;
+     }
+
+
+     /* Final mixing of bits. Never returns 0 */
+     private static long mix(long h) {
+         h ^= h >>> 33;
+         h *= 0xff51afd7ed558ccdL;
+         h ^= h >>> 33;
+         h *= 0xc4ceb9fe1a85ec53L;
+         h ^= h >>> 33;
+         return (h == 0 ? 1 : h);
+     }
+
+
+     private boolean count(boolean dup) {
+         if (dup)
+            _hits.increment();
+         else
+            _misses.increment();
+         return dup;
+     }
+
+
+
+     /**
+      * Returns true if a report with this timestamp from this sender is seen before.
+      */
+     public boolean checkTS(String from, Date ts)
+     {
+         long key = mix(hash(0xcbf29ce484222325L, from) ^ (ts.getTime() / 1000));
+         return count(_timestamped.checkAndAdd(key, 0));
+     }
+
+
      /**
       *  Returns true if packet is a duplicate.
       */
-     public synchronized boolean checkPacket(String from, String to, String report)
+     public boolean checkPacket(String from, String to, String report)
      {
-         String composed = from+to+report;
          if (report == null || report.length() < 1)
             return false;
+         long key = mix(hash(hash(hash(0xcbf29ce484222325L, from), to), report));
+         long now = System.currentTimeMillis();
+
          switch(report.charAt(0))
          {
-              /* Timestamped position reports are unique and 
+              /* Timestamped position reports are unique and
                * any reports which are seen before, can be
-               * therefore be regarded as duplicates 
+               * therefore be regarded as duplicates
                */
               case '@': case '/':
-              {
-                  if (_timestamped.containsKey(composed))
-                    return true;
-                  _timestamped.put(composed, TRUE);
-              }
-    
+                  if (_timestamped.checkAndAdd(key, now))
+                     return count(true);
+
               /* For any other report types, we should only look for
-               * duplicates within a timeframe of a few minutes. 
+               * duplicates within a timeframe of a few minutes.
                */
-              default: 
-              {
-                  removeOldRtEntries();
-                  if (_realtime.containsKey(composed))
-                     return true; 
-                  _realtime.put(composed, new Date());
-              }
+              default:
+                  return count(_realtime.checkAndAdd(key, now));
          }
-         return false;
-     } 
+     }
+
+
+
+     /** Number of reports found to be duplicates. */
+     public long getHits()
+        { return _hits.sum(); }
+
+     /** Number of reports found not to be duplicates. */
+     public long getMisses()
+        { return _misses.sum(); }
+
+     /** Number of remembered reports. Some of them may be older than the time limit. */
+     public int size()
+        { return _realtime.size() + _timestamped.size(); }
 }
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.function.*;
+
+
+
+/**
+ * Spatial index of tracker points. Used by StationDBImp to answer
+ * geographical searches. Implementations must be thread-safe.
+ */
+public interface GeoIndex
+{
+
+    /**
+     * Add (or move) a point to the index.
+     * @param s Item to add.
+     * @param pos Position to index the item at. If null, nothing is added.
+     */
+    public void add(TrackerPoint s, LatLng pos);
+
+
+    /**
+     * Remove a point from the index.
+     * @param s Item to remove.
+     * @param pos Position the item was indexed at (may be used as a hint).
+     */
+    public void remove(TrackerPoint s, LatLng pos);
+
+
+    /**
+     * Move a point from its previous position to a new position.
+     * @param s Item to move.
+     * @param prevpos Previous position (may be null).
+     * @param pos New position (may be null).
+     */
+    public default void update(TrackerPoint s, LatLng prevpos, LatLng pos) {
+        remove(s, prevpos);
+        add(s, pos);
+    }
+
+
+    /**
+     * Call f for each item within the rectangle defined by uleft (upper left
+     * corner) and lright (lower right corner).
+     */
+    public void search(LatLng uleft, LatLng lright, Consumer<TrackerPoint> f);
+
+
+    /**
+     * Call f for each item within the rectangle, until f returns false. 
+     * Implementations should stop searching when f returns false, so that
+     * a search with a limit does not need to visit all items. 
+     * @return false if stopped by f.
+     */
+    public default boolean searchWhile(LatLng uleft, LatLng lright, Predicate<TrackerPoint> f) {
+        boolean[] go = {true};
+        search(uleft, lright, x -> { 
+            if (go[0]) 
+                go[0] = f.test(x); 
+        });
+        return go[0];
+    }
+
+
+    /**
+     * Return true if s is indexed at the given position.
+     */
+    public boolean contains(TrackerPoint s, LatLng pos);
+
+
+    /**
+     * Call f for each item in the index, with the position it is indexed at.
+     * Used to verify the index against the station map.
+     */
+    public void forEach(BiConsumer<TrackerPoint, LatLng> f);
+
+
+    /** Return the number of indexed items. */
+    public int size();
+
+
+    /** Remove all items from the index. */
+    public void clear();
+
+
+
+    /**
+     * Create index according to configuration.
+     * stations.geoindex is 'rtree' (default) or 'grid'.
+     */
+    public static GeoIndex create(ServerAPI api) {
+        String type = api.getProperty("stations.geoindex", "rtree");
+        if ("grid".equals(type)) {
+            double cellsize = Double.parseDouble(api.getProperty("stations.geoindex.cellsize", "0.5"));
+            api.log().info("GeoIndex", "Using grid spatial index. Cell size="+cellsize+" degrees");
+            return new GridGeoIndex(cellsize);
+        }
+        if (!"rtree".equals(type))
+            api.log().warn("GeoIndex", "Unknown index type '"+type+"' - using rtree");
+        return new RTreeGeoIndex();
+    }
+}
@@ -1,6 +1,6 @@
  
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -26,6 +26,8 @@ import java.text.*;
  */
 public class GpsPosition extends OwnPosition
 {
+    private static final long serialVersionUID = -6995185214805749329L;
+
     public static SimpleDateFormat nmeadateformat = new SimpleDateFormat("ddMMyy");
     public static SimpleDateFormat nmeatimeformat = new SimpleDateFormat("ddMMyy HHmmss.SSS");
     public static SimpleDateFormat linuxtimeformat = new SimpleDateFormat("MMddHHmmyy.ss");
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+
+/**
+ * Mutable spatial index. The world is divided into a grid of cells of
+ * a fixed size (in degrees). Each cell has its own lock, so updates and
+ * searches in different areas do not block each other.
+ */
+public class GridGeoIndex implements GeoIndex
+{
+
+    /**
+     * Grid cell. Items and the position they are indexed at.
+     */
+    private static class Cell {
+        private final Map<TrackerPoint, LatLng> _items = new HashMap<TrackerPoint, LatLng>();
+
+        synchronized void put(TrackerPoint s, LatLng pos)
+            { _items.put(s, pos); }
+
+        synchronized void remove(TrackerPoint s)
+            { _items.remove(s); }
+
+        synchronized LatLng get(TrackerPoint s)
+            { return _items.get(s); }
+
+        synchronized List<Map.Entry<TrackerPoint, LatLng>> entries()
+            { return new ArrayList<Map.Entry<TrackerPoint, LatLng>>(_items.entrySet()); }
+
+        /* Add items inside the area to the list */
+        synchronized void collect(double x1, double x2, double y1, double y2, List<TrackerPoint> res) {
+            for (Map.Entry<TrackerPoint, LatLng> e : _items.entrySet()) {
+                LatLng p = e.getValue();
+                double x = p.getLng();
+                if (x >= x1 && x <= x2 && p.getLat() >= y1 && p.getLat() <= y2)
+                    res.add(e.getKey());
+            }
+        }
+    }
+
+
+    private final double _cellsize;
+    private final int    _ncols, _nrows;
+    private final ConcurrentHashMap<Long, Cell> _cells = new ConcurrentHashMap<Long, Cell>();
+
+    /* Cell where each item is currently indexed. Note that TrackerPoint uses identity for equals */
+    private final ConcurrentHashMap<TrackerPoint, Long> _where = new ConcurrentHashMap<TrackerPoint, Long>();
+
+
+
+    public GridGeoIndex(double cellsize) {
+        if (cellsize <= 0 || cellsize > 90)
+            cellsize = 0.5;
+        _cellsize = cellsize;
+        _ncols = (int) Math.ceil(360 / cellsize);
+        _nrows = (int) Math.ceil(180 / cellsize);
+    }
+
+
+
+    private int col(double lng)
+        { return Math.max(0, Math.min(_ncols-1, (int) Math.floor((lng + 180) / _cellsize))); }
+
+    private int row(double lat)
+        { return Math.max(0, Math.min(_nrows-1, (int) Math.floor((lat + 90) / _cellsize))); }
+
+    private static long key(int col, int row)
+        { return ((long) col << 32) | (row & 0xffffffffL); }
+
+    private long key(LatLng pos)
+        { return key(col(pos.getLng()), row(pos.getLat())); }
+
+
+
+    public void add(TrackerPoint s, LatLng pos) {
+        if (s == null || pos == null)
+            return;
+        final long k = key(pos);
+
+        /* compute() locks the entry for s, so concurrent moves of the same item are serialised */
+        _where.compute(s, (x, prev) -> {
+            if (prev != null && prev != k) {
+                Cell c = _cells.get(prev);
+                if (c != null)
+                    c.remove(s);
+            }
+            _cells.computeIfAbsent(k, kk -> new Cell()).put(s, pos);
+            return k;
+        });
+    }
+
+
+
+    /* The position is not needed since we keep track of where each item is indexed */
+    public void remove(TrackerPoint s, LatLng pos) {
+        if (s == null)
+            return;
+        _where.computeIfPresent(s, (x, prev) -> {
+            Cell c = _cells.get(prev);
+            if (c != null)
+                c.remove(s);
+            return null;
+        });
+    }
+
+
+    @Override public void update(TrackerPoint s, LatLng prevpos, LatLng pos) {
+        if (pos == null)
+            remove(s, prevpos);
+        else
+            add(s, pos);
+    }
+
+
+
+    public void search(LatLng ul, LatLng lr, Consumer<TrackerPoint> f) {
+        searchWhile(ul, lr, x -> { f.accept(x); return true; });
+    }
+
+
+
+    @Override public boolean searchWhile(LatLng ul, LatLng lr, Predicate<TrackerPoint> f) {
+        List<TrackerPoint> buf = new ArrayList<TrackerPoint>();
+        double y1 = lr.getLat(), y2 = ul.getLat();
+
+        if (lr.getLng() < ul.getLng())
+            /* Area crosses the date line */
+            return _search(ul.getLng(), 180, y1, y2, buf, f)
+                && _search(-180, lr.getLng(), y1, y2, buf, f);
+        else
+            return _search(ul.getLng(), lr.getLng(), y1, y2, buf, f);
+    }
+
+
+
+    /* Collect the items of a cell and call f outside of the cell lock */
+    private boolean _searchCell(Cell cell, double x1, double x2, double y1, double y2,
+                                List<TrackerPoint> buf, Predicate<TrackerPoint> f) {
+        buf.clear();
+        cell.collect(x1, x2, y1, y2, buf);
+        for (TrackerPoint x : buf)
+            if (!f.test(x))
+                return false;
+        return true;
+    }
+
+
+
+    private boolean _search(double x1, double x2, double y1, double y2,
+                            List<TrackerPoint> buf, Predicate<TrackerPoint> f) {
+        int c1 = col(x1), c2 = col(x2);
+        int r1 = row(y1), r2 = row(y2);
+        long ncells = (long) (c2-c1+1) * (r2-r1+1);
+
+        /* If the area covers more cells than are in use, scan the used cells instead */
+        if (ncells > _cells.size()) {
+            for (Map.Entry<Long, Cell> e : _cells.entrySet()) {
+                int c = (int) (e.getKey() >>> 32);
+                int r = (int) (e.getKey() & 0xffffffffL);
+                if (c >= c1 && c <= c2 && r >= r1 && r <= r2
+                      && !_searchCell(e.getValue(), x1, x2, y1, y2, buf, f))
+                    return false;
+            }
+            return true;
+        }
+        for (int c = c1; c <= c2; c++)
+            for (int r = r1; r <= r2; r++) {
+                Cell cell = _cells.get(key(c, r));
+                if (cell != null && !_searchCell(cell, x1, x2, y1, y2, buf, f))
+                    return false;
+            }
+        return true;
+    }
+
+
+
+    public boolean contains(TrackerPoint s, LatLng pos) {
+        if (s == null || pos == null)
+            return false;
+        Long k = _where.get(s);
+        if (k == null || k != key(pos))
+            return false;
+        Cell c = _cells.get(k);
+        LatLng p = (c == null ? null : c.get(s));
+        return p != null && p.getLat() == pos.getLat() && p.getLng() == pos.getLng();
+    }
+
+
+    public void forEach(BiConsumer<TrackerPoint, LatLng> f) {
+        for (Cell c : _cells.values())
+            for (Map.Entry<TrackerPoint, LatLng> e : c.entries())
+                f.accept(e.getKey(), e.getValue());
+    }
+
+
+    public int size()
+        { return _where.size(); }
+
+
+    public void clear() {
+        _where.clear();
+        _cells.clear();
+    }
+}
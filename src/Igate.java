@@ -125,7 +125,7 @@ public class Igate implements AprsChannel.Receiver, ManagedObject
         * by the channel-implementation.  
         */
        if ( p.type == '?' /* QUERY */ ||
-            (p.via != null && p.via.matches(".*((TCP[A-Z0-9]{2})|NOGATE|RFONLY|NO_TX).*") ) )
+            (p.getPath() != null && p.getPath().noInet()) )
            return;
             
        _msgcnt++;
@@ -158,7 +158,7 @@ public class Igate implements AprsChannel.Receiver, ManagedObject
                ! _rfChan.heard(p.from)
                       
           && /* AND No TCPXX, NOGATE, or RFONLY in header */
-               ! p.via.matches(".*((TCPXX)|NOGATE|RFONLY|NO_TX).*") 
+               ! p.getPath().noRf() 
        )    
        {        
           _api.log().debug("Igate", "Gated to RF");
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+
+/**
+ * Registry of named counters and latency histograms. Used to see where time
+ * is spent on the packet path and in the web server. Counters and histograms
+ * are created on first use and live as long as the program. They are cheap
+ * to update and can be updated from any thread.
+ *
+ * Names are on the form 'area.what', e.g. 'channel.decode' or 'db.update'.
+ */
+public class Metrics
+{
+
+    /**
+     * Counter.
+     */
+    public static class Counter {
+        private final LongAdder _n = new LongAdder();
+
+        public void inc()
+            { _n.increment(); }
+
+        public void add(long x)
+            { _n.add(x); }
+
+        public long get()
+            { return _n.sum(); }
+    }
+
+
+
+    /**
+     * Histogram of durations in nanoseconds. Values are counted in buckets
+     * with logarithmic size, 8 buckets for each power of two (like HDR histograms
+     * with 3 significant bits). Percentiles are therefore accurate within 12.5%.
+     */
+    public static class Histogram {
+        private static final int SUBBITS = 3;
+        private static final int SUB = 1 << SUBBITS;
+        private static final int NBUCKETS = 2*SUB + (63 - SUBBITS - 1) * SUB;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray(NBUCKETS);
+        private final LongAdder _count = new LongAdder(), _sum = new LongAdder();
+        private final AtomicLong _max = new AtomicLong();
+
+
+        private static int bucket(long v) {
+            if (v < 2*SUB)
+                return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);   /* >= SUBBITS+1 */
+            int sub = (int) (v >>> (exp - SUBBITS)) & (SUB - 1);
+            return 2*SUB + (exp - SUBBITS - 1) * SUB + sub;
+        }
+
+
+        /* Highest value in bucket */
+        private static long upper(int i) {
+            if (i < 2*SUB)
+                return i;
+            int exp = (i - 2*SUB) / SUB + SUBBITS + 1;
+            long sub = (i - 2*SUB) % SUB;
+            return ((SUB + sub + 1) << (exp - SUBBITS)) - 1;
+        }
+
+
+        /** Add a value (nanoseconds). */
+        public void record(long ns) {
+            if (ns < 0)
+                ns = 0;
+            _buckets.incrementAndGet(bucket(ns));
+            _count.increment();
+            _sum.add(ns);
+            if (ns > _max.get())
+                _max.accumulateAndGet(ns, Math::max);
+        }
+
+
+        /** Add the time since t (from System.nanoTime). */
+        public void since(long t)
+            { record(System.nanoTime() - t); }
+
+
+        public long count()
+            { return _count.sum(); }
+
+
+        /** Return summary. Times are in microseconds. */
+        public Summary summary() {
+            Summary s = new Summary();
+            long[] b = new long[NBUCKETS];
+            long n = 0;
+            for (int i=0; i<NBUCKETS; i++)
+                n += (b[i] = _buckets.get(i));
+            s.count = n;
+            if (n == 0)
+                return s;
+            s.mean = _sum.sum() / 1000.0 / _count.sum();
+            s.max = _max.get() / 1000.0;
+            s.p50 = percentile(b, n, 0.50);
+            s.p90 = percentile(b, n, 0.90);
+            s.p99 = percentile(b, n, 0.99);
+            s.p999 = percentile(b, n, 0.999);
+            return s;
+        }
+
+
+        private double percentile(long[] b, long n, double p) {
+            long rank = (long) Math.ceil(p * n), acc = 0;
+            for (int i=0; i<b.length; i++) {
+                acc += b[i];
+                if (acc >= rank)
+                    return Math.min(upper(i), _max.get()) / 1000.0;
+            }
+            return _max.get() / 1000.0;
+        }
+    }
+
+
+
+    /**
+     * Summary of histogram. Times are in microseconds.
+     */
+    public static class Summary {
+        public long count;
+        public double mean, p50, p90, p99, p999, max;
+    }
+
+
+
+    private static final ConcurrentHashMap<String, Counter> _counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, Histogram> _histograms = new ConcurrentHashMap<String, Histogram>();
+
+
+
+    /**
+     * Get (or create) counter. Callers on hot paths should keep the reference.
+     */
+    public static Counter counter(String name)
+        { return _counters.computeIfAbsent(name, x -> new Counter()); }
+
+
+    /**
+     * Get (or create) histogram. Callers on hot paths should keep the reference.
+     */
+    public static Histogram histogram(String name)
+        { return _histograms.computeIfAbsent(name, x -> new Histogram()); }
+
+
+    /** Return the value of all counters, sorted by name. */
+    public static Map<String, Long> counters() {
+        Map<String, Long> res = new TreeMap<String, Long>();
+        _counters.forEach((k, v) -> res.put(k, v.get()));
+        return res;
+    }
+
+
+    /** Return summary of all histograms, sorted by name. */
+    public static Map<String, Summary> histograms() {
+        Map<String, Summary> res = new TreeMap<String, Summary>();
+        _histograms.forEach((k, v) -> res.put(k, v.summary()));
+        return res;
+    }
+}
@@ -1,6 +1,6 @@
  
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -24,6 +24,8 @@ import java.io.*;
  */
 public class OwnPosition extends Station implements Runnable
 {
+    private static final long serialVersionUID = 7069224028064757773L;
+
     transient private  AprsChannel _inetChan, _rfChan;
     transient private  Thread      _thread;
     transient protected  ServerAPI _api;
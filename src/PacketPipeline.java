@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+
+/**
+ * Asynchronous delivery of incoming packets to receivers (parser, igate, etc.).
+ * A channel decodes packets and checks for duplicates on its own thread and
+ * submits them here. Parsing and updating of the database is done by a set of
+ * worker threads, each with a bounded queue. Packets from the same sender
+ * go to the same worker, so they are handled in the order they arrived.
+ *
+ * If a queue is full, the channel's thread waits for it. This slows down
+ * reading from the channel instead of losing packets.
+ */
+public class PacketPipeline
+{
+
+    /* Packet with the receivers it is to be delivered to */
+    private static class Item {
+        final AprsPacket p;
+        final boolean dup;
+        final AprsChannel.Receiver[] rcv;
+        final long enqueued;
+
+        Item(AprsPacket p, boolean dup, AprsChannel.Receiver[] rcv) {
+            this.p = p; this.dup = dup; this.rcv = rcv;
+            enqueued = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * Statistics of the pipeline.
+     */
+    public static class Stats {
+        public int workers;
+        public int[] queued;          /* Queue depth of each worker */
+        public long submitted, processed, stalls;
+        public double waitms;         /* Average time in queue (ms) */
+        public double maxwaitms;      /* Max time in queue since last reading (ms) */
+        public double procms;         /* Average processing time (ms) */
+    }
+
+
+
+    private class Worker extends Thread
+    {
+        private final BlockingQueue<Item> _queue;
+
+        Worker(int i, int qsize) {
+            super("PacketPipeline-"+i);
+            setDaemon(true);
+            _queue = new ArrayBlockingQueue<Item>(qsize);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Item x = _queue.take();
+                    long t = System.nanoTime();
+                    _waitTime.add(t - x.enqueued);
+                    _waitHist.record(t - x.enqueued);
+                    _maxWait.accumulateAndGet(t - x.enqueued, Math::max);
+
+                    for (AprsChannel.Receiver r : x.rcv)
+                        try {
+                            r.receivePacket(x.p, x.dup);
+                        }
+                        catch (Throwable e) {
+                            _api.log().warn("PacketPipeline", "Exception in receiver: "+e);
+                            e.printStackTrace(System.out);
+                        }
+                    _procTime.add(System.nanoTime() - t);
+                    _procHist.since(t);
+                    _processed.increment();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (Throwable e) {
+                    /* The worker must not die. submit() would block on its queue */
+                    _api.log().warn("PacketPipeline", "Exception in worker: "+e);
+                }
+            }
+        }
+    }
+
+
+
+    private final ServerAPI _api;
+    private final Worker[] _workers;
+    private final LongAdder  _submitted = new LongAdder(), _processed = new LongAdder(), _stalls = new LongAdder();
+    private final LongAdder  _waitTime = new LongAdder(), _procTime = new LongAdder();
+    private final AtomicLong _maxWait = new AtomicLong();
+    private final Metrics.Histogram _waitHist = Metrics.histogram("ingest.queue");
+    private final Metrics.Histogram _procHist = Metrics.histogram("ingest.process");
+
+
+
+    /**
+     * @param nworkers Number of worker threads.
+     * @param qsize Max number of packets queued for each worker.
+     */
+    public PacketPipeline(ServerAPI api, int nworkers, int qsize)
+    {
+        _api = api;
+        _workers = new Worker[Math.max(1, nworkers)];
+        for (int i=0; i<_workers.length; i++) {
+            _workers[i] = new Worker(i, Math.max(1, qsize));
+            _workers[i].start();
+        }
+        api.log().info("PacketPipeline", "Started "+_workers.length+" workers. Queue size="+qsize);
+    }
+
+
+
+    /**
+     * Queue packet for delivery to receivers. Wait if the queue is full.
+     */
+    public void submit(AprsPacket p, boolean dup, AprsChannel.Receiver[] rcv)
+    {
+        if (rcv.length == 0)
+            return;
+        String key = (p.from == null ? "" : p.from);
+        Worker w = _workers[(key.hashCode() & 0x7fffffff) % _workers.length];
+        Item x = new Item(p, dup, rcv);
+        _submitted.increment();
+        try {
+            if (!w._queue.offer(x)) {
+                _stalls.increment();
+                w._queue.put(x);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+
+    /** Return the total number of queued packets. */
+    public int queued() {
+        int n = 0;
+        for (Worker w : _workers)
+            n += w._queue.size();
+        return n;
+    }
+
+
+
+    /**
+     * Return statistics. The max waiting time is reset.
+     */
+    public Stats getStats()
+    {
+        Stats s = new Stats();
+        s.workers = _workers.length;
+        s.queued = new int[_workers.length];
+        for (int i=0; i<_workers.length; i++)
+            s.queued[i] = _workers[i]._queue.size();
+        s.submitted = _submitted.sum();
+        s.processed = _processed.sum();
+        s.stalls = _stalls.sum();
+        if (s.processed > 0) {
+            s.waitms = _waitTime.sum() / 1e6 / s.processed;
+            s.procms = _procTime.sum() / 1e6 / s.processed;
+        }
+        s.maxwaitms = _maxWait.getAndSet(0) / 1e6;
+        return s;
+    }
+}
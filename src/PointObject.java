@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2014-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2014-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -16,6 +16,7 @@ package no.polaric.aprsd;
 import java.util.*;
 import java.io.*;
 import java.util.regex.*;
+import java.util.concurrent.*;
 
 
 
@@ -27,14 +28,25 @@ import java.util.regex.*;
  
 public abstract class PointObject extends Point implements Cloneable, Serializable
 {             
+    /* Points are saved in stations.dat. Keep the same as in older versions */
+    private static final long serialVersionUID = -1664366614472279686L;
 
     /* 
-     * All points can have tags, implemented using a set of strings. 
-     * There is also a static map to keep track of what tag-names are 
-     * used an how many point-objects using each. 
+     * All points can have tags. There is a static map to keep track of what 
+     * tag-names are used an how many point-objects using each. 
+     *
+     * Each tag name and each of its hierarchical prefixes (e.g. "APRS" and 
+     * "APRS.telemetry" for "APRS.telemetry") is given a number (see tagId). 
+     * The tags of an object are kept as bitsets of these numbers: the tags that 
+     * are set and the tags with their prefixes. The bitsets are replaced, not 
+     * modified, when tags are changed. Null means no tags. 
      */
-    protected Set<String> _tags = new HashSet<String>();
+    protected transient long[] _tagBits, _tagPrefixes; 
     protected static SortedMap<String, Integer> _tagUse = new TreeMap<String, Integer>();
+    
+    private static final Map<String, Integer> _tagIds = new ConcurrentHashMap<String, Integer>();
+    private static final List<String> _tagNames = new ArrayList<String>();
+
     protected static ServerAPI   _api = null;
         
     protected boolean  _nodb = false;
@@ -107,6 +119,92 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
     public static boolean tagIsUsed(String tag)
        { return _tagUse.get(tag) != null; }
        
+       
+       
+    /**
+     * Return the number for a tag name. A new number is assigned if the
+     * name is not used before. 
+     */
+    public static int tagId(String tag) {
+        Integer id = _tagIds.get(tag);
+        if (id != null)
+            return id;
+        synchronized(_tagNames) {
+            return _tagIds.computeIfAbsent(tag, t -> {
+                _tagNames.add(t); 
+                return _tagNames.size()-1; 
+            });
+        }
+    }
+    
+    
+    /* Return the number for a tag name, or -1 if not used */
+    private static int _findTagId(String tag) {
+        Integer id = _tagIds.get(tag);
+        return (id == null ? -1 : id);
+    }
+    
+    
+    private static String _tagName(int id) {
+        synchronized(_tagNames) 
+            { return _tagNames.get(id); }
+    }
+    
+    
+    /** 
+     * Return true if the tag can be looked up by name, i.e. it is not a 
+     * regex. A dot is taken as the separator of a hierarchical tag.  
+     */
+    public static boolean isLiteralTag(String tag) {
+        if (tag == null || tag.isEmpty())
+            return false;
+        for (int i = 0; i < tag.length(); i++) {
+            char c = tag.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.')
+                return false;
+        }
+        return true;
+    }
+       
+       
+       
+    private static boolean _bit(long[] bits, int id)
+       { return id >= 0 && bits != null && (id >> 6) < bits.length && (bits[id >> 6] & (1L << id)) != 0; }
+    
+    private static long[] _setBit(long[] bits, int id) {
+        long[] res = Arrays.copyOf(bits == null ? new long[0] : bits, Math.max(bits == null ? 0 : bits.length, (id >> 6) + 1)); 
+        res[id >> 6] |= (1L << id);
+        return res;
+    }
+    
+    
+    /* Set the bitsets from the tag numbers */
+    private void _setTagBits(List<Integer> ids) {
+        long[] tags = null, prefixes = null;
+        for (int id : ids) {
+            tags = _setBit(tags, id);
+            String name = _tagName(id);
+            for (int i = name.indexOf('.'); i >= 0; i = name.indexOf('.', i+1))
+                prefixes = _setBit(prefixes, tagId(name.substring(0, i)));
+            prefixes = _setBit(prefixes, id);
+        }
+        _tagPrefixes = prefixes;
+        _tagBits = tags;
+    }
+    
+    
+    /* Return the numbers of the tags that are set */
+    private List<Integer> _tagIdList() {
+        List<Integer> res = new ArrayList<Integer>();
+        long[] bits = _tagBits;
+        if (bits != null)
+            for (int i = 0; i < bits.length * 64; i++)
+                if (_bit(bits, i))
+                    res.add(i);
+        return res;
+    }
+    
+       
     
     
     /* Class for Json encoding info about a point. This is subclassed in AprsPoint */
@@ -132,8 +230,34 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
         
         
     
+    /**
+     * Return the tags of this object. The set is a copy. 
+     */
     public Set<String> getTags() {
-        return _tags;
+        Set<String> res = new HashSet<String>();
+        for (int id : _tagIdList())
+            res.add(_tagName(id));
+        return res;
+    }
+    
+    
+    /** Called when tags are added or removed. */
+    protected void tagsChanged() {}
+    
+    
+    /* Add or remove tag. Return false if nothing is changed */
+    private synchronized boolean _updateTag(String tag, boolean remove) {
+        int id = (remove ? _findTagId(tag) : tagId(tag));
+        if (_bit(_tagBits, id) != remove)
+            return false;
+        List<Integer> ids = _tagIdList();
+        if (remove)
+            ids.remove((Integer) id);
+        else
+            ids.add(id);
+        _setTagBits(ids);
+        tagsChanged();
+        return true;
     }
     
      
@@ -141,14 +265,16 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
      * Set tag on this object. 
      */
     public void setTag(String tag) {
-       if (tag == null || tag.equals("") || _tags.contains(tag)) 
+       if (tag == null || tag.equals("") || !_updateTag(tag, false)) 
           return; 
        _incrementTag(tag);      
-        _tags.add(tag); 
         
         StationDB.Hist hdb = _api.getDB().getHistDB(); 
         if (hdb != null && !_nodb)
             hdb.setTag(this, tag, false);
+        StationJournal j = _api.getDB().getJournal();
+        if (j != null)
+            j.tag(this, tag, false);
     }
     
     
@@ -156,14 +282,16 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
      * Remove tag. 
      */
     public void removeTag(String tag) { 
-        if (tag == null || !_tags.contains(tag))
+        if (tag == null || !_updateTag(tag, true))
             return;
         _decrementTag(tag);
-        _tags.remove(tag); 
         
         StationDB.Hist hdb = _api.getDB().getHistDB(); 
         if (hdb != null && !_nodb)
             hdb.setTag(this, tag, true);
+        StationJournal j = _api.getDB().getJournal();
+        if (j != null)
+            j.tag(this, tag, true);
     }
     
     
@@ -172,14 +300,59 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
      * Remove all tags associated with this object. 
      */
     public void removeAllTags() {
-        for (String x : _tags) {
+        Set<String> tags;
+        synchronized(this) {
+            tags = getTags();
+            _tagBits = _tagPrefixes = null;
+        }
+        tagsChanged();
+        for (String x : tags) {
            _decrementTag(x);   
             /* Mark as removed in hist db, if necessary */
             StationDB.Hist hdb = _api.getDB().getHistDB(); 
             if (hdb != null && !_nodb)
                 hdb.setTag(this, x, true);
         }
-        _tags.clear();
+    }
+    
+    
+    /* 
+     * Tags are serialized by name, as the set '_tags' like in older versions. 
+     * Numbers are not the same in the next run. 
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("_nodb", boolean.class),
+        new ObjectStreamField("_description", String.class),
+        new ObjectStreamField("_icon", String.class),
+        new ObjectStreamField("_tags", Set.class)
+    };
+    
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField f = out.putFields();
+        f.put("_nodb", _nodb);
+        f.put("_description", _description);
+        f.put("_icon", _icon);
+        f.put("_tags", new HashSet<String>(getTags()));
+        out.writeFields();
+    }
+    
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField f = in.readFields();
+        _nodb = f.get("_nodb", false);
+        _description = (String) f.get("_description", null);
+        _icon = (String) f.get("_icon", null);
+        
+        Set<String> tags = new HashSet<String>();
+        if (f.get("_tags", null) instanceof Set<?> x)
+            for (Object t : x)
+                tags.add((String) t);
+        
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String t : tags)
+            ids.add(tagId(t));
+        _setTagBits(ids);
     }
     
     
@@ -189,16 +362,38 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
      * input should be properly sanitized using SecUtils.escape4regex()
      */
     public boolean _hasTag(Pattern pattern) { 
-        for (String x: _tags) {
+        for (String x: getTags()) {
             if (pattern.matcher(x).matches()) 
                 return true;
         }
         return false;
     }
-
+    
+    
+    /** 
+     * Return true if the tag with the given number is set on this object. 
+     */
+    public boolean hasTag(int id)
+        { return _bit(_tagBits, id); }
+    
+    
+    /**
+     * Return true if the tag with the given number, or a tag that it is a prefix
+     * of, is set on this object. 
+     */
+    public boolean hasTagPrefix(int id)
+        { return _bit(_tagPrefixes, id); }
+        
+        
+    /**
+     * Return true if tag, or a tag that starts with tag followed by a dot, is 
+     * set on this object. Tag may be a regex. 
+     */
     public boolean hasTag(String tag) {
         if (tag==null)
             return false; 
+        if (isLiteralTag(tag))
+            return hasTagPrefix(_findTagId(tag));
         Pattern pattern = Pattern.compile("("+tag+")(\\..*)?");
         return _hasTag(pattern);
     }
@@ -206,6 +401,9 @@ public abstract class PointObject extends Point implements Cloneable, Serializab
     
     
     public boolean _tagIsOn(String tag) {
+        if (isLiteralTag(tag))
+            return (hasTagPrefix(_findTagId(tag)) || hasTagPrefix(_findTagId("+"+tag))) 
+                && !hasTagPrefix(_findTagId("-"+tag));
         return ( hasTag( "\\+?(" + tag + ")") && !hasTag("\\-"+tag) );
     }
     
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.function.*;
+
+import com.github.davidmoten.rtree2.*;
+import com.github.davidmoten.rtree2.geometry.Point;
+import com.github.davidmoten.rtree2.geometry.Geometries;
+
+
+
+/**
+ * Spatial index based on the immutable R-tree from rtree2. Each update
+ * creates a new tree (copy on write) and updates are serialised on this object.
+ */
+public class RTreeGeoIndex implements GeoIndex
+{
+    private volatile RTree<TrackerPoint, Point> _tree = RTree.star().maxChildren(6).create();
+
+
+    public synchronized void add(TrackerPoint s, LatLng pos) {
+        if (s == null || pos == null)
+            return;
+        var point = Geometries.pointGeographic(pos.getLng(), pos.getLat());
+        _tree = _tree.delete(s, point, true)
+                     .add(s, point);
+    }
+
+
+    public synchronized void remove(TrackerPoint s, LatLng pos) {
+        if (s == null || pos == null)
+            return;
+        var point = Geometries.pointGeographic(pos.getLng(), pos.getLat());
+        _tree = _tree.delete(s, point, true);
+    }
+
+
+    @Override public synchronized void update(TrackerPoint s, LatLng prevpos, LatLng pos) {
+        remove(s, prevpos);
+        add(s, pos);
+    }
+
+
+    public void search(LatLng ul, LatLng lr, Consumer<TrackerPoint> f) {
+        /* The tree is immutable, so a search can run on a snapshot without locking */
+        RTree<TrackerPoint, Point> tree = _tree;
+        Iterable<Entry<TrackerPoint, Point>> entries =
+            tree.search(Geometries.rectangleGeographic(ul.getLng(), lr.getLat(), lr.getLng(), ul.getLat()));
+        for (Entry<TrackerPoint, Point> pt : entries)
+            f.accept(pt.value());
+    }
+
+
+    @Override public boolean searchWhile(LatLng ul, LatLng lr, Predicate<TrackerPoint> f) {
+        /* The search is lazy. Stopping early means the rest of the tree is not visited */
+        RTree<TrackerPoint, Point> tree = _tree;
+        for (Entry<TrackerPoint, Point> pt : 
+                tree.search(Geometries.rectangleGeographic(ul.getLng(), lr.getLat(), lr.getLng(), ul.getLat())))
+            if (!f.test(pt.value()))
+                return false;
+        return true;
+    }
+
+
+    public boolean contains(TrackerPoint s, LatLng pos) {
+        if (s == null || pos == null)
+            return false;
+        for (Entry<TrackerPoint, Point> e : _tree.search(Geometries.pointGeographic(pos.getLng(), pos.getLat())))
+            if (e.value() == s)
+                return true;
+        return false;
+    }
+
+
+    public void forEach(BiConsumer<TrackerPoint, LatLng> f) {
+        for (Entry<TrackerPoint, Point> e : _tree.entries())
+            f.accept(e.value(), new LatLng(e.geometry().y(), e.geometry().x()));
+    }
+
+
+    public int size()
+        { return _tree.size(); }
+
+
+    public synchronized void clear()
+        { _tree = RTree.star().maxChildren(6).create(); }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+
+/**
+ * Text index of tracker points, for searching by ident, display id (alias)
+ * and words in the description. Search is case insensitive.
+ *
+ * Names and words are kept in sorted maps (upper case), so the points
+ * where a name or word starts with a given prefix are found without
+ * looking at the other points. Keys are the name or word, a zero char
+ * and the ident of the point, so that each key is unique.
+ *
+ * The index is updated when points are added or removed and when the
+ * alias or description changes (see StationDB.textChanged).
+ */
+public class SearchIndex
+{
+    /* What is indexed for a point */
+    private record Indexed(TrackerPoint point, String ident, String display, Set<String> words) {}
+
+    private final ConcurrentSkipListMap<String, TrackerPoint> _idents = new ConcurrentSkipListMap<String, TrackerPoint>();
+    private final ConcurrentSkipListMap<String, TrackerPoint> _display = new ConcurrentSkipListMap<String, TrackerPoint>();
+    private final ConcurrentSkipListMap<String, TrackerPoint> _words = new ConcurrentSkipListMap<String, TrackerPoint>();
+    private final ConcurrentHashMap<String, Indexed> _items = new ConcurrentHashMap<String, Indexed>();
+
+
+
+    private static String key(String name, String ident)
+        { return name + '\0' + ident; }
+
+
+    /*
+     * Words of a description (upper case). A search expression may match a word
+     * with a leading '(', so words are indexed both with and without it.
+     */
+    private static Set<String> words(String descr) {
+        Set<String> res = new HashSet<String>();
+        if (descr == null)
+            return res;
+        for (String w : descr.toUpperCase().split("\\s+")) {
+            if (w.isEmpty())
+                continue;
+            res.add(w);
+            if (w.length() > 1 && w.charAt(0) == '(')
+                res.add(w.substring(1));
+        }
+        return res;
+    }
+
+
+
+    /**
+     * Add or update a point.
+     */
+    public void put(TrackerPoint s)
+    {
+        if (s == null || s.getIdent() == null)
+            return;
+        String ident = s.getIdent();
+        _items.compute(ident, (k, old) -> {
+            Indexed x = new Indexed(s, ident, s.getDisplayId().toUpperCase(), words(s.getDescr()));
+            if (old != null && old.point == s && old.display.equals(x.display) && old.words.equals(x.words))
+                return old;
+            _remove(old);
+            _idents.put(key(ident.toUpperCase(), ident), s);
+            _display.put(key(x.display, ident), s);
+            for (String w : x.words)
+                _words.put(key(w, ident), s);
+            return x;
+        });
+    }
+
+
+
+    /**
+     * Remove a point.
+     */
+    public void remove(String ident)
+    {
+        if (ident != null)
+            _items.computeIfPresent(ident, (k, old) -> { _remove(old); return null; });
+    }
+
+    
+    
+    /**
+     * Remove a point if it is the one indexed with its ident.
+     */
+    public void remove(String ident, TrackerPoint s)
+    {
+        if (ident != null)
+            _items.computeIfPresent(ident, (k, old) -> {
+                if (old.point != s)
+                    return old;
+                _remove(old); 
+                return null; 
+            });
+    }
+
+
+
+    private void _remove(Indexed x) {
+        if (x == null)
+            return;
+        _idents.remove(key(x.ident.toUpperCase(), x.ident));
+        _display.remove(key(x.display, x.ident));
+        for (String w : x.words)
+            _words.remove(key(w, x.ident));
+    }
+
+
+
+    private static void _prefix(ConcurrentSkipListMap<String, TrackerPoint> map, String prefix, Consumer<TrackerPoint> f) {
+        for (TrackerPoint s : map.subMap(prefix, true, prefix + '\uffff', false).values())
+            f.accept(s);
+    }
+
+
+
+    /**
+     * Call f for each point where the ident (upper case) starts with prefix.
+     */
+    public void identPrefix(String prefix, Consumer<TrackerPoint> f)
+        { _prefix(_idents, prefix, f); }
+
+
+
+    /**
+     * Return the points where the ident, display id or a word in the
+     * description (upper case) starts with prefix. The prefix must not
+     * contain whitespace.
+     */
+    public Set<TrackerPoint> candidates(String prefix)
+    {
+        Set<TrackerPoint> res = Collections.newSetFromMap(new IdentityHashMap<TrackerPoint, Boolean>());
+        _prefix(_idents, prefix, res::add);
+        _prefix(_display, prefix, res::add);
+        _prefix(_words, prefix, res::add);
+        return res;
+    }
+
+
+    /** Remove all points. */
+    public void clear() {
+        _items.clear();
+        _idents.clear();
+        _display.clear();
+        _words.clear();
+    }
+
+
+    /** Return the number of indexed points. */
+    public int size()
+        { return _items.size(); }
+}
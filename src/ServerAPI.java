@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2016 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -79,6 +79,15 @@ public interface ServerAPI
         
         /** Create a room */
         public void createRoom(String name, Class cl);
+        
+        /** Rooms with names starting with prefix are created when subscribed to */
+        public void createRooms(String prefix, Class cl);
+        
+        /** 
+         * Rooms with names starting with prefix are created when subscribed to. 
+         * If coalesce is true, a queued message may be replaced by a newer one. 
+         */
+        public void createRooms(String prefix, Class cl, boolean coalesce);
     }
   
     public interface UserDb {
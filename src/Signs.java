@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -48,6 +48,7 @@ public class Signs extends Source
      * Sign item. A pointobject plus scale and url.
      */
     public static class Item extends PointObject {
+        private static final long serialVersionUID = -8566599484806175798L;
         protected String _id;
         protected long _maxScale;
         protected String _url;
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2015-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2015-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -15,6 +15,7 @@
 package no.polaric.aprsd;
 import java.util.*;
 import java.io.Serializable;
+import no.polaric.aprsd.filter.Pred;
   
   
 /**
@@ -22,6 +23,7 @@ import java.io.Serializable;
  */
 public class Station extends AprsPoint implements Serializable, Cloneable
 {
+    private static final long serialVersionUID = -946927488390167324L;
 
    public static class Status implements Serializable
    {
@@ -111,8 +113,12 @@ public class Station extends AprsPoint implements Serializable, Cloneable
     public String getPathInfo()
        { return _pathinfo; }
        
-    public void setPathInfo(String p)
-       { _pathinfo = p; }
+    public synchronized void setPathInfo(String p) { 
+       if (Objects.equals(p, _pathinfo))
+          return;
+       _pathinfo = p; 
+       inputChanged(Pred.IN_PATH);
+    }
        
     public Set<String> getTrafficFrom() { 
         StationDB db = _api.getDB();
@@ -151,8 +157,12 @@ public class Station extends AprsPoint implements Serializable, Cloneable
     } 
     
     
-    public void setSource(Source src)
-       { _source = src.getIdent(); }
+    public synchronized void setSource(Source src) { 
+       if (Objects.equals(src.getIdent(), _source))
+          return;
+       _source = src.getIdent(); 
+       inputChanged(Pred.IN_SOURCE);
+    }
    
    
     @Override public Source getSource()
@@ -193,6 +203,9 @@ public class Station extends AprsPoint implements Serializable, Cloneable
         if (t==null)  
            t = new Date(); 
         _status = new Status(t, txt);
+        StationJournal j = _api.getDB().getJournal();
+        if (j != null)
+            j.status(this, t, txt);
         // If the station description is empty, then use the status
        if ( ! hasDescr() )
        {
@@ -231,13 +244,13 @@ public class Station extends AprsPoint implements Serializable, Cloneable
             setSpeed(pd.speed);
             setCourse(pd.course);
             setAltitude((int) pd.altitude);
-            _pathinfo = pathinfo; 
+            setPathInfo(pathinfo); 
             setDescr(descr); 
         
             if (pd.symbol != 0 && pd.symtab != 0 && (pd.symbol != _symbol || pd.symtab != _altsym))
             {
-                if (pd.symbol != 0)  _symbol = pd.symbol;
-                if (pd.symtab != 0)  _altsym = pd.symtab;
+                if (pd.symbol != 0)  setSymbol(pd.symbol);
+                if (pd.symtab != 0)  setSymtab(pd.symtab);
                 setChanging();
             }
         }
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2015-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2015-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -99,6 +99,13 @@ public interface StationDB
      */
     public StationDB.Hist getHistDB();
     
+    
+    /**
+     * Get journal (write-ahead log) of changes. Null if not used. 
+     */
+    public default StationJournal getJournal()
+        { return null; }
+    
         
             
             
@@ -205,6 +212,13 @@ public interface StationDB
      * @param tags Array of tags (keywords).
      */
     public List<TrackerPoint> search(String srch, String[] tags);
+    
+    
+    /**
+     * Called when the alias or description of a point has changed, to update
+     * indexes used by search. 
+     */
+    public default void textChanged(TrackerPoint s) {}
      
     
     
@@ -212,14 +226,33 @@ public interface StationDB
      * Geographical search in the database of trackerpoints. 
      * Return list of stations within the rectangle defined by uleft (upper left 
      * corner) and lright (lower right corner).
+     * Points that the filter hides completely (hide-all at scale 0) are left out.
      * @param uleft Upper left corner.
      * @param lright Lower right corner.
-     * @param filter May be used in search. Null is allowed. 
+     * @param filter Filter. Null is allowed. 
      */
     public List<TrackerPoint>
           search(LatLng uleft, LatLng lright, RuleSet filter);       
         
         
+    /**
+     * Geographical search in the database of trackerpoints, without building a list. 
+     * Call f for each point within the rectangle defined by uleft (upper left 
+     * corner) and lright (lower right corner), until f returns false. Points that
+     * the filter hides completely at the given scale (hide-all) are skipped while 
+     * searching. So are points from restricted sources if the user is not allowed 
+     * to see them and the filter does not make them public. 
+     * @param uleft Upper left corner.
+     * @param lright Lower right corner.
+     * @param filter Filter. Null is allowed. 
+     * @param scale Map scale for the filter. 
+     * @param allowed True if the user may see points from restricted sources.
+     * @return false if stopped by f.
+     */
+    public boolean search(LatLng uleft, LatLng lright, RuleSet filter, long scale, boolean allowed, 
+                          java.util.function.Predicate<TrackerPoint> f);
+        
+        
         
         
     /****************************
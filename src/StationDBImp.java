@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016-2024 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -16,15 +16,12 @@ package no.polaric.aprsd;
 import java.util.*;
 import java.io.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.nio.file.*;
 import java.util.regex.*;
 import java.util.stream.*;
 import no.polaric.aprsd.filter.*;
-
-import com.github.davidmoten.rtree2.*;
-import static com.github.davidmoten.rtree2.geometry.Geometries.point;
-import com.github.davidmoten.rtree2.geometry.Point;
-import com.github.davidmoten.rtree2.geometry.Geometries;
-import static com.github.davidmoten.rtree2.Entries.entry;
+import net.jpountz.lz4.*;
 
 
 /**
@@ -34,20 +31,44 @@ import static com.github.davidmoten.rtree2.Entries.entry;
 public class StationDBImp extends StationDBBase implements StationDB, Runnable
 {
     private SortedMap<String, TrackerPoint> _map = new ConcurrentSkipListMap<String,TrackerPoint>();
+    private final SearchIndex _search = new SearchIndex();
     private String     _file;
-    private String     _stnsave;
+    private Pattern    _stnsave;
+    private boolean    _compress;
+    private int        _restoreThreads;
+    private StationJournal _journal;
     private boolean    _kill = false; 
-    RTree<TrackerPoint, Point> _geoindex = RTree.star().maxChildren(6).create();
+    private GeoIndex   _geoindex;
+    private String     _verifyMode;
+    private int        _indexDrift = 0;
+    private long       _indexRepairs = 0;
+    private final Metrics.Histogram _updateTime = Metrics.histogram("db.update");
     
     
     public StationDBImp(ServerAPI api)
     {
         super(api);
+        _geoindex = GeoIndex.create(api);
+        _verifyMode = api.getProperty("stations.geoindex.verify", "repair");
         _file = api.getProperty("stations.file", "stations.dat");
-        _stnsave = api.getProperty("stations.save", ".*");
+        String stnsave = api.getProperty("stations.save", ".*");
+        _stnsave = Pattern.compile("("+stnsave+")|.*\\@("+stnsave+")");
+        _compress = api.getBoolProperty("stations.file.compress", true);
+        _restoreThreads = api.getIntProperty("stations.restore.threads", 
+            Runtime.getRuntime().availableProcessors());
         if (_file.charAt(0) != '/')
            _file = System.getProperties().getProperty("datadir", ".")+"/"+_file;   
         restore();
+        if (api.getBoolProperty("stations.journal.on", false)) 
+            try {
+                String jfile = System.getProperties().getProperty("datadir", ".")+"/stations.journal";
+                /* Size in MB. A mapped file can be at most 2 GB */
+                long jsize = Math.max(1, api.getIntProperty("stations.journal.size", 64)) * 1024L * 1024L;
+                _journal = new StationJournal(api, jfile, (int) Math.min(jsize, Integer.MAX_VALUE));
+            }
+            catch (IOException e) {
+                api.log().warn("StationDBImp", "Cannot open journal: "+e);
+            }
         Thread t = new Thread(this, "StationDBImp");
         t.start(); 
     }
@@ -59,6 +80,23 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
     }
     
     
+    /**
+     * Replay changes logged since the last checkpoint. To be called at startup 
+     * when this is registered as the station database and before channels are started. 
+     */
+    public void replayJournal() {
+        if (_journal == null)
+            return;
+        _journal.replay(this);
+        if (!_journal.isEmpty())
+            _hasChanged = true;
+    }
+    
+    
+    @Override public StationJournal getJournal()
+        { return _journal; }
+    
+    
     /***********************************
      * Item methods (get/add, remove)
      ***********************************/
@@ -70,27 +108,43 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
         { return _map.size(); }
         
         
+    /**
+     * Return the number of inconsistencies between the station map and 
+     * the spatial index, found by the last verification. 
+     */
+    public int getIndexDrift()
+        { return _indexDrift; }
+        
+        
+    /** 
+     * Return the total number of repairs done on the spatial index. 
+     */
+    public long getIndexRepairs()
+        { return _indexRepairs; }
+        
+        
      
     @Override protected TrackerPoint _getRtItem(String id) {
         return _map.get(id);
     }
         
      
-    @Override protected synchronized void _addRtItem(TrackerPoint s) {
-        if (s == null)
+    /*
+     * A point is added, updated and removed while holding its lock, so that the map 
+     * and the indexes are changed atomically for each point. 
+     */
+    @Override protected void _addRtItem(TrackerPoint s) {
+        if (s == null || s.getIdent() == null)
             return;
         
-        if ( s != null && s.getIdent() != null) 
-            _map.remove(s.getIdent());
-        _map.put(s.getIdent(), s);
-
-        if (s.getPosition() == null)
-            return;
-
-        LatLng pos = s.getPosition();
-        var point = Geometries.pointGeographic(pos.getLng(), pos.getLat());
-        _geoindex = _geoindex.delete(s, point, true)
-                             .add(s, point);
+        synchronized(s) {
+            /* If another object with the same ident is replaced, remove it from the index */
+            TrackerPoint old = _map.put(s.getIdent(), s);
+            if (old != null && old != s)
+                _geoindex.remove(old, old.getPosition());
+            _geoindex.add(s, s.getPosition());
+            _search.put(s);
+        }
     }
     
     
@@ -98,30 +152,42 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
      * Update an existing tracker point. 
      * @param s existing station
      */
-    public synchronized void updateItem(TrackerPoint s, LatLng prevpos) {
-        /* Remove existing point in r-tree index */
-        _removeGItem(s, prevpos);
-        _map.remove(s.getIdent());
-        
-        /* Add it with new position */
-        _addRtItem(s);
-    }
-
-    
-    private void _removeGItem(TrackerPoint s, LatLng pos) {
-        if (s != null && pos != null) {
-            var point = Geometries.pointGeographic(pos.getLng(), pos.getLat());
-            _geoindex = _geoindex.delete(s, point, true);
+    public void updateItem(TrackerPoint s, LatLng prevpos) {
+        if (s == null || s.getIdent() == null)
+            return;
+        long t = System.nanoTime();
+        synchronized(s) {
+            TrackerPoint old = _map.put(s.getIdent(), s);
+            if (old != null && old != s)
+                _geoindex.remove(old, old.getPosition());
+            if (old != s)
+                _search.put(s);
+                
+            /* Move the point in the spatial index */
+            _geoindex.update(s, prevpos, s.getPosition());
+            
+            /* Logged in the same order as removals */
+            if (_journal != null)
+                _journal.position(s);
         }
+        _updateTime.since(t);
     }
     
     
     
-    @Override protected synchronized void _removeRtItem(String id) {
-        TrackerPoint pt = _getRtItem(id);
-        if (pt.getPosition() != null)
-            _removeGItem(pt, pt.getPosition());
-        _map.remove(id);
+    @Override protected void _removeRtItem(String id) {
+        TrackerPoint pt; 
+        while ((pt = _map.get(id)) != null)
+            synchronized(pt) {
+                /* If the point is replaced meanwhile, try again with the new one */
+                if (!_map.remove(id, pt))
+                    continue;
+                _geoindex.remove(pt, pt.getPosition());
+                _search.remove(id, pt);
+                if (_journal != null)
+                    _journal.delete(id);
+                return;
+            }
     }    
         
         
@@ -137,10 +203,37 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
      */
     public List<TrackerPoint> searchPrefix(String srch)
     {
-        if (srch == null)
-           return new LinkedList<TrackerPoint>();
-        return _map.values().stream().filter( s ->
-           ( s.getIdent().toUpperCase().startsWith(srch) )).collect(Collectors.toList());
+        List<TrackerPoint> res = new ArrayList<TrackerPoint>();
+        if (srch != null)
+           _search.identPrefix(srch, res::add);
+        return res;
+    }
+    
+    
+    
+    /** The alias or description of a point has changed. */
+    @Override public void textChanged(TrackerPoint s) {
+        if (s != null && s.getIdent() != null && _map.get(s.getIdent()) == s)
+            _search.put(s);
+    }
+    
+    
+    
+    /* 
+     * Literal start of a wildcard expression. Matching idents, display ids and 
+     * description words must start with it. Empty if it cannot be determined. 
+     */
+    private static String _literalPrefix(String srch) {
+        if (srch.indexOf('|') >= 0)
+            return "";
+        int i = 0;
+        while (i < srch.length() && "*\\[](){}?+^$".indexOf(srch.charAt(i)) < 0 
+                 && !Character.isWhitespace(srch.charAt(i)))
+            i++;
+        /* The last char is optional if followed by ? or { */
+        if (i > 0 && i < srch.length() && (srch.charAt(i) == '?' || srch.charAt(i) == '{'))
+            i--;
+        return srch.substring(0, i);
     }
      
      
@@ -158,22 +251,35 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
     public List<TrackerPoint> search(String srch, String[] tags)
     {
         srch = srch.toUpperCase();
+        String prefix = "";
         if (srch.matches("REG:.*"))
            srch = srch.substring(4);
         else {
+           prefix = _literalPrefix(srch);
            srch = srch.replaceAll("\\.", Matcher.quoteReplacement("\\."));
            srch = srch.replaceAll("\\*", Matcher.quoteReplacement("(\\S*)"));
         }
-         
-        final String _srch = srch;
-        List<TrackerPoint> result = _map.values().stream().filter( s -> 
-            ( s.getIdent().toUpperCase().matches(_srch) ||
-                s.getDisplayId().toUpperCase().matches(_srch) ||
-                s.getDescr().toUpperCase().matches("(.*\\s+)?\\(?("+_srch+")\\)?\\,?(\\s+.*)?") ) &&
+        
+        /* 
+         * If the expression starts with a literal prefix, the candidates are found in the 
+         * search index. Otherwise all points are candidates. The regex is checked on 
+         * the candidates. 
+         */
+        final Pattern pid = Pattern.compile(srch);
+        final Pattern pdescr = Pattern.compile("(.*\\s+)?\\(?("+srch+")\\)?\\,?(\\s+.*)?");
+        Collection<TrackerPoint> cand = (prefix.isEmpty() ? _map.values() : _search.candidates(prefix));
+        List<TrackerPoint> result = cand.stream().filter( s -> 
             ( tags==null ? true : 
                 (Arrays.stream(tags).map(x -> s.tagIsOn(x))
-                                    .reduce((x,y) -> (x && y))).get())
+                                    .reduce((x,y) -> (x && y))).get()) &&
+            ( pid.matcher(s.getIdent().toUpperCase()).matches() ||
+                pid.matcher(s.getDisplayId().toUpperCase()).matches() ||
+                pdescr.matcher(s.getDescr().toUpperCase()).matches() ) 
         ).collect(Collectors.toList());
+        
+        /* In order of ident, like the points in the map */
+        if (!prefix.isEmpty())
+           result.sort((x, y) -> x.getIdent().compareTo(y.getIdent()));
         return result;
     } 
      
@@ -185,24 +291,45 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
      * Geographical search in the database of trackerpoints. 
      * Return list of stations within the rectangle defined by uleft (upper left 
      * corner) and lright (lower right corner).
+     * Points that the filter hides completely (at scale 0) are left out.
      * @param uleft Upper left corner.
      * @param lright Lower right corner.
      */
     public List<TrackerPoint>
         search(LatLng ul, LatLng lr, RuleSet filter)
     { 
-        List<TrackerPoint> res = new ArrayList<TrackerPoint>(2000);
-        Iterable<Entry<TrackerPoint, Point>> entries =
-            _geoindex.search(Geometries.rectangleGeographic(ul.getLng(), lr.getLat(), lr.getLng(), ul.getLat()));  
-
-        for (Entry<TrackerPoint, Point> pt : entries) 
-            res.add(pt.value());
-            
+        List<TrackerPoint> res = new ArrayList<TrackerPoint>();
+        search(ul, lr, filter, 0, true, x -> res.add(x));
         return res;
     }
     
     
     
+    /**
+     * Geographical search. Call f for each point within the rectangle that
+     * is not hidden, until f returns false. See StationDB. 
+     */
+    public boolean search(LatLng ul, LatLng lr, RuleSet filter, long scale, boolean allowed, 
+                          java.util.function.Predicate<TrackerPoint> f)
+    {
+        if (filter == null && allowed)
+            return _geoindex.searchWhile(ul, lr, f);
+        return _geoindex.searchWhile(ul, lr, 
+            x -> (_hidden(x, filter, scale, allowed) || f.test(x)));
+    }
+    
+    
+    /* True if the point is hidden by the filter or because its source is restricted */
+    private static boolean _hidden(TrackerPoint x, RuleSet filter, long scale, boolean allowed) {
+        Action action = (filter == null ? null : filter.apply(x, scale));
+        if (action != null && action.hideAll())
+            return true;
+        Source src = x.getSource();
+        return !allowed && src != null && src.isRestricted() && (action == null || !action.isPublic());
+    }
+    
+    
+    
     
     
     /****************************
@@ -227,8 +354,11 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
     /**
      * Shutdown. May save state, etc.. 
      */
-    public void shutdown()
-       { save(); }
+    public void shutdown() { 
+        save(); 
+        if (_journal != null)
+            _journal.close();
+    }
     
     
     
@@ -237,85 +367,341 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
      * Private helper methods
      ******************************/
     
+    /*
+     * Snapshot file format (version 1): 
+     *
+     *    int   magic ("PSDB")
+     *    short version
+     *    byte  flags (1 = body is LZ4 compressed)
+     *    body: 
+     *       record with routes, own objects and tags (java serialized)
+     *       one record for each point (java serialized, one stream per record)
+     *       int 0 (end marker)
+     *
+     * A record is an int length followed by the data. Since each point is 
+     * serialized independently, points can be restored in parallel and a point
+     * that cannot be restored (e.g. if a class has changed) is just skipped. 
+     */
+    private static final int SNAP_MAGIC   = 0x50534442;
+    private static final int SNAP_VERSION = 1;
+    private static final int SNAP_LZ4     = 0x01;
+    private static final int SNAP_BATCH   = 256;
+    
+    
     /** 
-     * Save (checkpoint) station data to disk file. 
+     * Save (checkpoint) station data to disk file. The file is written to a 
+     * temporary file which replaces the previous one when complete. Each point is 
+     * serialized while holding its lock, so ingest is not blocked. 
      */
     private synchronized void save()
     {
-        if (_hasChanged)
-          try {
-             _api.log().info("StationDBImp", "Saving data...");
-             FileOutputStream fs = new FileOutputStream(_file);
-             ObjectOutputStream ofs = new ObjectOutputStream(fs);
-             
-             ofs.writeObject(_routes);
-             _api.getMsgProcessor().save();
-             _ownobj.save(ofs);
-             PointObject.saveTags(ofs);
-             ofs.writeInt(_map.size());
-             
-             /* Save all points that matches regex */
-             for (TrackerPoint s: _map.values()) { 
-                if (s.getIdent().matches("("+_stnsave+")|.*\\@("+_stnsave+")"))
-                    ofs.writeObject(s); 
-             }
-             
-             
-           }
-           catch (Exception e) {
-               _api.log().warn("StationDBImp", "Cannot save data: "+e);
-               e.printStackTrace();
-           } 
-         _hasChanged = false; 
+        if (!_hasChanged && (_journal == null || _journal.isEmpty()))
+            return;
+        _hasChanged = false; 
+        int jmark = (_journal == null ? 0 : _journal.mark());
+        File tmp = new File(_file+".tmp");
+        try {
+            _api.log().info("StationDBImp", "Saving data...");
+            long t0 = System.currentTimeMillis();
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            out.writeInt(SNAP_MAGIC);
+            out.writeShort(SNAP_VERSION);
+            out.writeByte(_compress ? SNAP_LZ4 : 0);
+            DataOutputStream body = (_compress ? new DataOutputStream(new LZ4FrameOutputStream(out)) : out);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+            
+            /* Routes, own objects and tags */
+            ObjectOutputStream ofs = new ObjectOutputStream(buf);
+            ofs.writeObject(_routes);
+            _api.getMsgProcessor().save();
+            _ownobj.save(ofs);
+            PointObject.saveTags(ofs);
+            ofs.close();
+            _writeRecord(body, buf);
+            
+            /* Save all points that matches regex */
+            int n = 0;
+            for (TrackerPoint s: _map.values()) {
+                if (!_stnsave.matcher(s.getIdent()).matches())
+                    continue;
+                buf.reset();
+                try {
+                    ofs = new ObjectOutputStream(buf);
+                    synchronized(s) {
+                        ofs.writeObject(s);
+                    }
+                    ofs.close();
+                }
+                catch (Exception e) {
+                    _api.log().warn("StationDBImp", "Cannot save point "+s.getIdent()+": "+e);
+                    continue;
+                }
+                _writeRecord(body, buf);
+                n++;
+            }
+            body.writeInt(0);
+            body.close();
+            Files.move(tmp.toPath(), new File(_file).toPath(), 
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                
+            /* Changes logged before the checkpoint started are now in the file */
+            if (_journal != null)
+                _journal.truncate(jmark);
+            _api.log().info("StationDBImp", "Saved "+n+" points in "+(System.currentTimeMillis()-t0)+" ms");
+        }
+        catch (Exception e) {
+            _api.log().warn("StationDBImp", "Cannot save data: "+e);
+            e.printStackTrace();
+            tmp.delete();
+        } 
+    }
+    
+    
+    
+    private static void _writeRecord(DataOutputStream out, ByteArrayOutputStream buf) 
+        throws IOException
+    {
+        out.writeInt(buf.size());
+        buf.writeTo(out);
+    }
+    
+    
+    private static byte[] _readRecord(DataInputStream in) 
+        throws IOException
+    {
+        int len = in.readInt(); 
+        if (len <= 0)
+            return null;
+        byte[] rec = new byte[len];
+        in.readFully(rec);
+        return rec;
     }
     
     
     
     /**
-     * Restore station data from disk file. 
+     * Restore station data from disk file. If the file is in the old format
+     * (one java serialized stream) it is read and converted to the new format at 
+     * the next checkpoint. 
      */
     private synchronized void restore()
     {
-        ObjectInputStream ifs = null; 
-        try {
-          _api.log().info("StationDBImp", "Restoring point data...");
-          FileInputStream fs = new FileInputStream(_file);
-          ifs = new ObjectInputStream(fs);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(_file), 65536))) 
+        {
+            _api.log().info("StationDBImp", "Restoring point data...");
+            long t0 = System.currentTimeMillis();
+            in.mark(16);
+            if (in.readInt() != SNAP_MAGIC) {
+                in.reset();
+                restoreLegacy(in);
+                return;
+            }
+            int version = in.readShort();
+            if (version != SNAP_VERSION)
+                throw new IOException("Unsupported file version: "+version);
+            int flags = in.readByte();
+            DataInputStream body = ((flags & SNAP_LZ4) != 0 ? new DataInputStream(new LZ4FrameInputStream(in)) : in);
+          
+            _api.log().debug("StationDBImp", "Restoring routes, msgproc, ownobj and tags...");
+            ObjectInputStream ifs = new ObjectInputStream(new ByteArrayInputStream(_readRecord(body)));
+            _routes = (RouteInfo) ifs.readObject();
+            _api.getMsgProcessor().restore();
+            _ownobj.restore(ifs);
+            PointObject.restoreTags(ifs);
           
-          _api.log().debug("StationDBImp", "Restoring routes...");
-          _routes = (RouteInfo) ifs.readObject();
-          _api.log().debug("StationDBImp", "Restoring msgproc and ownobj...");    
-          _api.getMsgProcessor().restore();
-          _ownobj.restore(ifs);
-          _api.log().debug("StationDBImp", "Restoring tags...");
-          PointObject.restoreTags(ifs);
-          _api.log().debug("StationDBImp", "Restoring points...");
-          int size = ifs.readInt();
-          for (int i=0; i<size; i++)
-          { 
-              TrackerPoint st = (TrackerPoint) ifs.readObject(); 
-             _addRtItem(st);
-          }
-          ifs.close();
+            /* Points are deserialized and added in parallel, in batches */
+            _api.log().debug("StationDBImp", "Restoring points...");
+            ExecutorService pool = Executors.newFixedThreadPool(_restoreThreads);
+            AtomicInteger failed = new AtomicInteger(0);
+            try {
+                List<byte[]> batch = new ArrayList<byte[]>(SNAP_BATCH);
+                byte[] rec;
+                while ((rec = _readRecord(body)) != null) {
+                    batch.add(rec);
+                    if (batch.size() >= SNAP_BATCH) {
+                        _restoreBatch(pool, batch, failed);
+                        batch = new ArrayList<byte[]>(SNAP_BATCH);
+                    }
+                }
+                _restoreBatch(pool, batch, failed);
+                pool.shutdown();
+                if (!pool.awaitTermination(10, TimeUnit.MINUTES))
+                    throw new IOException("Timeout when restoring points");
+            }
+            finally {
+                /* Stop workers if restore failed, before the points are cleared */
+                pool.shutdownNow();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            _relinkOwners();
+            
+            if (failed.get() > 0)
+                _api.log().warn("StationDBImp", "Couldn't restore "+failed.get()+" points");
+            _api.log().info("StationDBImp", "Restored "+_map.size()+" points in "+(System.currentTimeMillis()-t0)+" ms");
+        }
+        catch (FileNotFoundException e) {
+            _api.log().info("StationDBImp", "No saved data: "+_file);
         }
         catch (Exception e) {
             _api.log().warn("StationDBImp", "Cannot restore data: "+e);
+            _keepCopy();
             _map.clear();
+            _geoindex.clear();
+            _search.clear();
             _routes = new RouteInfo();
         } 
     }
     
     
     
-    private synchronized void rebuildIndex() {
-        _geoindex = RTree.star().maxChildren(6).create();
-        for (TrackerPoint s: _map.values()) { 
-            if (s.getPosition() == null)
-                continue;
+    private void _restoreBatch(ExecutorService pool, List<byte[]> batch, AtomicInteger failed) {
+        pool.submit( () -> {
+            for (byte[] rec : batch) 
+                try {
+                    _addRtItem(_readPoint(rec));
+                }
+                catch (Exception e) { 
+                    if (failed.incrementAndGet() == 1)
+                        _api.log().warn("StationDBImp", "Couldn't restore point: "+e);
+                }
+        });
+    }
+    
+    
+    
+    private static TrackerPoint _readPoint(byte[] rec) 
+        throws IOException, ClassNotFoundException
+    {
+        return (TrackerPoint) new ObjectInputStream(new ByteArrayInputStream(rec)).readObject();
+    }
+    
+    
+    
+    /* Keep a copy of a data file that could not be restored. It is overwritten at next checkpoint */
+    private void _keepCopy() {
+        try {
+            Files.copy(Paths.get(_file), Paths.get(_file + ".failed"), StandardCopyOption.REPLACE_EXISTING);
+            _api.log().info("StationDBImp", "Copy of data file kept in: "+_file+".failed");
+        }
+        catch (Exception e) {}
+    }
+    
+    
+    
+    /**
+     * Objects are saved with the ident of their owner. Set the owner to the 
+     * restored station. If it is not restored, use a new station that is 
+     * not added to the database (like the copy saved by older versions). 
+     */
+    private void _relinkOwners() {
+        for (TrackerPoint x: _map.values()) 
+            if (x instanceof AprsObject obj && obj.getOwner() == null && obj.getOwnerIdent() != null) {
+                TrackerPoint owner = _map.get(obj.getOwnerIdent());
+                obj.setOwner(owner instanceof Station st ? st : new Station(obj.getOwnerIdent()));
+            }
+    }
+    
+    
+    
+    /**
+     * Restore station data from a file in the old format (one java serialized stream). 
+     */
+    private void restoreLegacy(InputStream in) 
+        throws IOException, ClassNotFoundException
+    {
+        _api.log().info("StationDBImp", "Converting data file from old format...");
+        ObjectInputStream ifs = new ObjectInputStream(in);
+          
+        _api.log().debug("StationDBImp", "Restoring routes...");
+        _routes = (RouteInfo) ifs.readObject();
+        _api.log().debug("StationDBImp", "Restoring msgproc and ownobj...");    
+        _api.getMsgProcessor().restore();
+        _ownobj.restore(ifs);
+        _api.log().debug("StationDBImp", "Restoring tags...");
+        PointObject.restoreTags(ifs);
+        _api.log().debug("StationDBImp", "Restoring points...");
+        int size = ifs.readInt();
+        try {
+            for (int i=0; i<size; i++)
+                _addRtItem((TrackerPoint) ifs.readObject());
+        }
+        catch (EOFException e) {
+            /* The count includes points that were not saved */
+        }
+        
+        /* Write the new format at next checkpoint */
+        _hasChanged = true; 
+    }
+    
+    
+    
+    /**
+     * Verify the spatial index against the station map. This runs without
+     * blocking ingest. Each item found to be inconsistent is re-checked while
+     * holding its lock (updates of an item are done while holding it).
+     * @param repair If true, fix inconsistencies.
+     * @return number of inconsistencies found. 
+     */
+    private int verifyIndex(boolean repair)
+    {
+        int drift = 0; 
+        
+        /* Items missing in the index or indexed at the wrong position */
+        for (TrackerPoint s: _map.values()) {
+            LatLng pos = s.getPosition();
+            if (pos != null && !_geoindex.contains(s, pos) && _checkIndexItem(s, null, repair))
+                drift++;
+        }
+        
+        /* Items in the index that are removed from the map or have moved */
+        List<TrackerPoint> stale = new ArrayList<TrackerPoint>();
+        List<LatLng> stalepos = new ArrayList<LatLng>();
+        _geoindex.forEach( (s, ipos) -> {
+            LatLng pos = s.getPosition();
+            if (_map.get(s.getIdent()) != s || pos == null || !_samePos(pos, ipos)) {
+                stale.add(s);
+                stalepos.add(ipos);
+            }
+        });
+        for (int i=0; i<stale.size(); i++)
+            if (_checkIndexItem(stale.get(i), stalepos.get(i), repair))
+                drift++;
+        return drift;
+    }
+    
+    
+    
+    /** 
+     * Check (and repair) a single item. 
+     * @param ipos position the item is indexed at. null if not known.
+     * @return true if the item is inconsistent. 
+     */
+    private boolean _checkIndexItem(TrackerPoint s, LatLng ipos, boolean repair)
+    {
+        synchronized(s) {
             LatLng pos = s.getPosition();
-            var point = Geometries.pointGeographic(pos.getLng(), pos.getLat());
-            _geoindex = _geoindex.add(s, point);
+            if (_map.get(s.getIdent()) != s || pos == null) {
+                if (ipos == null) 
+                    return false;
+                if (repair) 
+                    _geoindex.remove(s, ipos);
+            }
+            else if (_geoindex.contains(s, pos) && (ipos == null || _samePos(pos, ipos)))
+                return false;
+            else if (repair)
+                _geoindex.update(s, ipos, pos);
         }
+        if (repair)
+            _indexRepairs++;
+        return true;
+    }
+    
+    
+    private static boolean _samePos(LatLng x, LatLng y) {
+        return y != null && Math.abs(x.getLat() - y.getLat()) < 0.000001 
+                         && Math.abs(x.getLng() - y.getLng()) < 0.000001;
     }
     
     
@@ -362,8 +748,16 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
          t.add(Calendar.DAY_OF_YEAR, -1);
          _routes.removeOldEdges(t.getTime());
                     
-         _api.log().info("StationDBImp", "rebuilding index");
-         rebuildIndex();
+         /* 
+          * The spatial index is maintained incrementally (removeItem above). 
+          * Just verify it and repair it if requested. 
+          */
+         if (!"off".equals(_verifyMode)) {
+             _indexDrift = verifyIndex("repair".equals(_verifyMode));
+             if (_indexDrift > 0)
+                 _api.log().info("StationDBImp", "Spatial index drift: "+_indexDrift+" items"
+                     + ("repair".equals(_verifyMode) ? " (repaired)" : ""));
+         }
          
          s_runtime.runFinalization ();
          s_runtime.gc ();
@@ -389,18 +783,24 @@ public class StationDBImp extends StationDBBase implements StationDB, Runnable
     {
         long period = 1000 * 60 * 1;       // 1 minutes
         long periods_gc = 15;              // 15 minutes
+        long periods_save = Math.max(1, _api.getIntProperty("stations.save.interval", 15));
+        long count = 0;
         
         while(true) {
            if (_kill) 
                break;
            try { 
-              for (int count=0; count < periods_gc; count++) 
-              {
-                  Thread.sleep(period); 
-                  checkMoving(); 
-              } 
-              garbageCollect();            
-              save();
+              Thread.sleep(period); 
+              checkMoving(); 
+              count++;
+              if (_journal != null)
+                  _journal.sync();
+              if (count % periods_gc == 0)
+                  garbageCollect();  
+              
+              /* Checkpoint. Do it early if the journal is filling up */
+              if (count % periods_save == 0 || (_journal != null && _journal.isNearlyFull()))
+                  save();
            }
            catch (Exception e)
              {  _api.log().error("StationDBImp", "GC thread: "+e); 
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+
+
+/**
+ * Write-ahead log of changes to stations between checkpoints (snapshots)
+ * of StationDBImp. It is an append-only, memory-mapped file. It is replayed on
+ * top of the last snapshot at startup and truncated at each checkpoint.
+ *
+ * Record format: int length, int crc32, byte type, data. A record with
+ * length 0 marks the end of the log.
+ */
+public class StationJournal
+{
+    private static final int MAGIC   = 0x504a4e4c;   /* "PJNL" */
+    private static final int VERSION = 1;
+    private static final int HDRSIZE = 16;
+
+    private static final byte POS    = 'P';
+    private static final byte STATUS = 'S';
+    private static final byte TAG    = 'T';
+    private static final byte UNTAG  = 'U';
+    private static final byte DELETE = 'D';
+
+    private ServerAPI        _api;
+    private FileChannel      _chan;
+    private MappedByteBuffer _buf;
+    private int              _size;
+    private boolean          _full = false;
+    private volatile boolean _replaying = false;
+    private long             _nrecords = 0;
+
+    /* Buffers for encoding records. Protected by the journal lock */
+    private ByteArrayOutputStream _rec = new ByteArrayOutputStream(256);
+    private DataOutputStream      _out = new DataOutputStream(_rec);
+    private CRC32                 _crc = new CRC32();
+
+
+
+    public StationJournal(ServerAPI api, String file, int size)
+        throws IOException
+    {
+        _api = api;
+        _size = size;
+        _chan = FileChannel.open(Paths.get(file),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _buf = _chan.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (_buf.getInt(0) != MAGIC || _buf.getInt(4) != VERSION) {
+            /* New or incompatible file. Start with an empty log */
+            _buf.putInt(0, MAGIC);
+            _buf.putInt(4, VERSION);
+            _buf.putInt(HDRSIZE, 0);
+        }
+        _buf.position(HDRSIZE);
+    }
+
+
+
+    /** Return the number of records written since start. */
+    public long nRecords()
+        { return _nrecords; }
+
+    /** Return true if the log is empty. */
+    public synchronized boolean isEmpty()
+        { return _buf.position() == HDRSIZE; }
+
+    /** Return true if the log is full or nearly full. A checkpoint should be done soon. */
+    public synchronized boolean isNearlyFull()
+        { return _full || _buf.position() > _size / 4 * 3; }
+
+
+
+    /**
+     * Log a position update of a point.
+     */
+    public void position(TrackerPoint s)
+    {
+        if (!(s instanceof AprsPoint) || s.getPosition() == null)
+            return;
+        AprsPoint p = (AprsPoint) s;
+        synchronized(this) {
+            if (_replaying || _full)
+                return;
+            try {
+                _rec.reset();
+                _out.writeByte(POS);
+                if (p instanceof AprsObject obj) {
+                    _out.writeUTF(obj.getIdent().replaceFirst("@.*", ""));
+                    _out.writeUTF(obj.getOwner() == null ? "" : obj.getOwner().getIdent());
+                    _out.writeBoolean(obj.isTimeless());
+                }
+                else {
+                    _out.writeUTF(p.getIdent());
+                    _out.writeUTF("");
+                    _out.writeBoolean(false);
+                }
+                _out.writeLong(p.getUpdated() == null ? 0 : p.getUpdated().getTime());
+                _out.writeDouble(p.getPosition().getLat());
+                _out.writeDouble(p.getPosition().getLng());
+                _out.writeInt(p.getSpeed());
+                _out.writeInt(p.getCourse());
+                _out.writeInt(p.getAltitude());
+                _out.writeChar(p.getSymbol());
+                _out.writeChar(p.getSymtab());
+                _out.writeInt(p.getAmbiguity());
+                _out.writeUTF(p.getDescr());
+                _out.writeUTF(p instanceof Station st && st.getPathInfo() != null ? st.getPathInfo() : "");
+                _append();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+
+
+    /**
+     * Log a status report of a station.
+     */
+    public synchronized void status(Station s, Date t, String txt)
+    {
+        if (_replaying || _full || txt == null)
+            return;
+        try {
+            _rec.reset();
+            _out.writeByte(STATUS);
+            _out.writeUTF(s.getIdent());
+            _out.writeLong(t == null ? 0 : t.getTime());
+            _out.writeUTF(txt);
+            _append();
+        }
+        catch (IOException e) {}
+    }
+
+
+
+    /**
+     * Log setting or removal of a tag.
+     */
+    public synchronized void tag(PointObject s, String tag, boolean delete)
+    {
+        if (_replaying || _full || !(s instanceof TrackerPoint))
+            return;
+        try {
+            _rec.reset();
+            _out.writeByte(delete ? UNTAG : TAG);
+            _out.writeUTF(s.getIdent());
+            _out.writeUTF(tag);
+            _append();
+        }
+        catch (IOException e) {}
+    }
+
+
+
+    /**
+     * Log removal of a point.
+     */
+    public synchronized void delete(String ident)
+    {
+        if (_replaying || _full)
+            return;
+        try {
+            _rec.reset();
+            _out.writeByte(DELETE);
+            _out.writeUTF(ident);
+            _append();
+        }
+        catch (IOException e) {}
+    }
+
+
+
+    /* Append the record in _rec to the log. Must hold the lock */
+    private void _append()
+    {
+        int len = _rec.size();
+        int pos = _buf.position();
+        if ((long) pos + 8 + len + 4 > _size) {
+            _full = true;
+            _api.log().warn("StationJournal", "Journal is full. Changes are not logged until next checkpoint");
+            return;
+        }
+        byte[] data = _rec.toByteArray();
+        _crc.reset();
+        _crc.update(data);
+
+        /* Write the end marker first, then the record and finally its length */
+        _buf.putInt(pos + 8 + len, 0);
+        _buf.position(pos + 4);
+        _buf.putInt((int) _crc.getValue());
+        _buf.put(data);
+        _buf.putInt(pos, len);
+        _nrecords++;
+    }
+
+
+
+    /**
+     * Return the current end of the log. To be called when a checkpoint starts.
+     */
+    public synchronized int mark()
+        { return _buf.position(); }
+
+
+
+    /**
+     * Remove the records before the mark. To be called when a checkpoint is
+     * complete. Records written after the mark are kept.
+     */
+    public synchronized void truncate(int mark)
+    {
+        int end = _buf.position();
+        int len = end - mark;
+        if (len > 0) {
+            byte[] rest = new byte[len];
+            _buf.get(mark, rest);
+            _buf.put(HDRSIZE, rest);
+        }
+        _buf.putInt(HDRSIZE + len, 0);
+        _buf.position(HDRSIZE + len);
+        _full = false;
+    }
+
+
+
+    /**
+     * Flush the log to disk.
+     */
+    public synchronized void sync()
+        { _buf.force(); }
+
+
+
+    /**
+     * Replay the log on the given station database. Records are kept in the log
+     * until the next checkpoint. This is to be called at startup, before channels
+     * are started, and is therefore not synchronized.
+     */
+    public void replay(StationDB db)
+    {
+        int pos = HDRSIZE, n = 0;
+        _replaying = true;
+        try {
+            while ((long) pos + 8 <= _size) {
+                int len = _buf.getInt(pos);
+                if (len <= 0 || (long) pos + 8 + len > _size)
+                    break;
+                byte[] data = new byte[len];
+                _buf.get(pos + 8, data);
+                _crc.reset();
+                _crc.update(data);
+                if (_buf.getInt(pos + 4) != (int) _crc.getValue()) {
+                    _api.log().warn("StationJournal", "Checksum error. Ignoring rest of journal");
+                    break;
+                }
+                try {
+                    _apply(db, new DataInputStream(new ByteArrayInputStream(data)));
+                }
+                catch (Exception e) {
+                    _api.log().warn("StationJournal", "Cannot replay record: "+e);
+                }
+                pos += 8 + len;
+                n++;
+            }
+        }
+        finally {
+            _replaying = false;
+        }
+        _buf.putInt(pos, 0);
+        _buf.position(pos);
+        _api.log().info("StationJournal", "Replayed "+n+" records");
+    }
+
+
+
+    private void _apply(StationDB db, DataInputStream in)
+        throws IOException
+    {
+        byte type = in.readByte();
+        switch (type) {
+            case POS -> {
+                String id = in.readUTF();
+                String owner = in.readUTF();
+                boolean timeless = in.readBoolean();
+                long ts = in.readLong();
+                ReportHandler.PosData pd = new ReportHandler.PosData();
+                pd.pos = new LatLng(in.readDouble(), in.readDouble());
+                pd.speed = in.readInt();
+                pd.course = in.readInt();
+                pd.altitude = in.readInt();
+                pd.symbol = in.readChar();
+                pd.symtab = in.readChar();
+                pd.ambiguity = in.readInt();
+                String descr = in.readUTF();
+                String path = in.readUTF();
+
+                AprsPoint p;
+                if (owner.length() > 0) {
+                    Station ost = db.getStation(owner, null);
+                    if (ost == null)
+                        ost = db.newStation(owner);
+                    TrackerPoint x = db.getItem(id+"@"+owner, null);
+                    p = (x instanceof AprsObject ? (AprsObject) x : db.newObject(ost, id));
+                }
+                else {
+                    p = db.getStation(id, null);
+                    if (p == null)
+                        p = db.newStation(id);
+                }
+                if (p instanceof AprsObject)
+                    p.update(timeless || ts == 0 ? null : new Date(ts), pd, descr, path);
+                else
+                    p.update(ts == 0 ? new Date() : new Date(ts), pd, descr, path);
+            }
+            case STATUS -> {
+                String id = in.readUTF();
+                long ts = in.readLong();
+                String txt = in.readUTF();
+                Station st = db.getStation(id, null);
+                if (st != null)
+                    st.setStatus(ts == 0 ? null : new Date(ts), txt);
+            }
+            case TAG, UNTAG -> {
+                String id = in.readUTF();
+                String tag = in.readUTF();
+                TrackerPoint x = db.getItem(id, null);
+                if (x != null && type == TAG)
+                    x.setTag(tag);
+                else if (x != null)
+                    x.removeTag(tag);
+            }
+            case DELETE -> {
+                String id = in.readUTF();
+                if (db.getItem(id, null) != null)
+                    db.removeItem(id);
+            }
+            default ->
+                throw new IOException("Unknown record type: "+type);
+        }
+    }
+
+
+
+    public synchronized void close()
+    {
+        try {
+            _buf.force();
+            _chan.close();
+        }
+        catch (IOException e) {}
+    }
+}
@@ -94,7 +94,6 @@ public class Telemetry implements Serializable
     
     public Telemetry(ServerAPI api, String id) {
         _ident = id;
-        api.getWebserver().getPubSub().createRoom("telemetry:"+id, (Class) null);
 
         for (int i=0; i < ANALOG_CHANNELS; i++) 
            _chanMeta[i] = new NumChannelMeta(); 
@@ -205,7 +204,6 @@ public class Telemetry implements Serializable
         if (_ident == null)
             return;
             
-        api.getWebserver().getPubSub().createRoom("telemetry:"+_ident, (Class) null);
         api.getWebserver().getPubSub().put("telemetry:"+_ident, null);
     }
     
@@ -1,5 +1,5 @@
-/* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+/*
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -11,99 +11,194 @@
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
  */
- 
+
 package no.polaric.aprsd;
 import java.util.*;
-import java.io.Serializable;
-  
-  
+import java.util.concurrent.*;
+
+
 /**
  * This class allows threads to wait for certain events to occur within
- * a geographical area. 
+ * a geographical area.
+ *
+ * Waiters are indexed by their area (see AreaIndex), so a signal only
+ * wakes up the waiters whose area contains the point. Each waiter has
+ * its own lock and a queue of the points signalled in its area, so no
+ * events are lost while the waiter is not waiting.
  */
- 
+
 public class ThreadNotifier implements Notifier
 {
-    private Date signalled = new Date(); 
-    private TrackerPoint signalledPt; 
     private static long _mintime  = 1000 * 10;   /* Minimum wait time: 10s */
     private static long _timeout  = 1000 * 120;  /* Maximum wait time: 2min */
-    private Map<Long, Integer> _waiters = new HashMap<Long,Integer>();
-    // 0 = continue waiting, 1 = return XML, 2 = abort and return nothing
-    
+    private static final int MAXEVENTS = 1000;   /* Max number of queued events per waiter */
+
+
+    /**
+     * Waiter. Events are queued from when the waiter is created (see subscribe)
+     * until it is closed. The points are kept in the order they were signalled,
+     * each point once.
+     */
+    public class Waiter {
+        private final long id;
+        private final LatLng uleft, lright;
+        private final long created = System.currentTimeMillis();
+        private final Set<TrackerPoint> events = new LinkedHashSet<TrackerPoint>();
+        private boolean overflow = false;
+        private int abort = 0;  /* 0 = continue waiting, 1 = return, 2 = abort and return nothing */
+
+        Waiter(long i, LatLng ul, LatLng lr)
+            { id = i; uleft = ul; lright = lr; }
+
+        /* Queue event and wake up the waiter */
+        synchronized void offer(TrackerPoint st) {
+            if (st != null && uleft != null && !st.isInside(uleft, lright))
+                return;
+            if (events.size() < MAXEVENTS)
+                events.add(st);
+            else
+                overflow = true;
+            notify();
+        }
+
+        synchronized void abort(int x) {
+            abort = x;
+            notify();
+        }
+
+
+        /**
+         * Wait for events. When the first event arrives, wait until mintime has
+         * elapsed since the waiter was created (to collect more events). Return
+         * after timeout if nothing happens.
+         *
+         * @param mintime Minimum time to wait (milliseconds).
+         * @param timeout Maximum time to wait (milliseconds).
+         * @return The points signalled within the area, empty if timeout. If there
+         *    were too many events or a signal had no point, the list contains null.
+         *    Null if aborted.
+         */
+        public synchronized List<TrackerPoint> await(long mintime, long timeout) {
+            try {
+                while (true) {
+                    long elapsed = System.currentTimeMillis() - created;
+                    if (abort == 2)
+                        return null;
+                    if (abort == 1 || elapsed >= timeout)
+                        break;
+                    if (!events.isEmpty() && elapsed >= mintime)
+                        break;
+                    wait(events.isEmpty() ? timeout - elapsed : mintime - elapsed);
+                }
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+            if (overflow || events.contains(null))
+                return Collections.singletonList(null);
+            List<TrackerPoint> res = new ArrayList<TrackerPoint>(events);
+            events.clear();
+            return res;
+        }
+
+
+        /** Stop receiving events. */
+        public void close() {
+            _waiters.remove(id, this);
+            _areas.remove(this);
+        }
+    }
+
+
+    private final ConcurrentHashMap<Long, Waiter> _waiters = new ConcurrentHashMap<Long, Waiter>();
+    private final AreaIndex<Waiter> _areas = new AreaIndex<Waiter>(2, 1.0);
+
+
+
     /**
-     * Wait for an event to happen within the given geographical area. 
+     * Wait for an event to happen within the given geographical area.
+     * Wait no shorter than 10 seconds and no longer than 2 minutes.
      * @param uleft Upper left corner of the area.
-     * @param lright Lower right corner of the area. 
-     * @param id Identity of the waiter thread. Assumed to be a unique number. 
+     * @param lright Lower right corner of the area.
+     * @param id Identity of the waiter thread. Assumed to be a unique number.
      *           Other waiters with the same id will be aborted.
+     * @return false if aborted.
      */
     public boolean waitSignal(LatLng uleft, LatLng lright, long id)
     {
-         long wstart = (new Date()).getTime();
-         long elapsed = 0;
-         boolean found = false;
-         boolean noAbort = false;
-                  
-         synchronized (this) {
-            /* Abort any other waiter having the same id  */
-            if (_waiters.containsKey(id)) {
-                _waiters.put(id, 2);
-                notifyAll();
-                noAbort = true; 
-            }
-            else
-                _waiters.put(id, 0);
-         }    
-         do {
-              try {
-                  synchronized(this) {
-                     wait(found ? _mintime-elapsed : _timeout-elapsed);
-                     Integer abort = _waiters.get(id);
-                     if (abort != null && abort > 0 && !noAbort) {
-                         _waiters.remove(id);
-                         return false;        
-                     }
-                     else
-                         _waiters.put(id, 0);
-                     noAbort = false; 
-                     /* Has there been events inside the interest zone */
-                     found = found || signalledPt == null || uleft == null || 
-                                  signalledPt.isInside(uleft, lright); 
-                  } 
-              }
-              catch (Exception e) {}    
-              elapsed = (new Date()).getTime() - wstart;
-
-            /* Wait no shorter than _mintime and no longer 
-             * than _timeout 
-             */
-         } while ( !(found && elapsed > _mintime) &&
-                   elapsed < _timeout );
-         _waiters.remove(id);
-         return true;
+        return waitEvents(uleft, lright, id, _mintime, _timeout) != null;
+    }
+
+
+
+    /**
+     * Start receiving events within the given geographical area. The waiter
+     * must be closed when done.
+     *
+     * @param uleft Upper left corner of the area. If null, any event will do.
+     * @param lright Lower right corner of the area.
+     * @param id Identity of the waiter. Other waiters with the same id will be aborted.
+     */
+    public Waiter subscribe(LatLng uleft, LatLng lright, long id)
+    {
+        Waiter w = new Waiter(id, uleft, lright);
+        Waiter prev = _waiters.put(id, w);
+        if (prev != null)
+            prev.abort(2);
+        if (uleft == null)
+            _areas.put(w, new LatLng(90, -180), new LatLng(-90, 180));
+        else
+            _areas.put(w, uleft, lright);
+        return w;
+    }
+
+
+
+    /**
+     * Wait for events within the given geographical area.
+     * See subscribe and Waiter.await.
+     */
+    public List<TrackerPoint> waitEvents(LatLng uleft, LatLng lright, long id, long mintime, long timeout)
+    {
+        Waiter w = subscribe(uleft, lright, id);
+        try {
+            return w.await(mintime, timeout);
+        }
+        finally {
+            w.close();
+        }
     }
-    
-    
+
+
+
     /**
      * Signal an event on a certain geographical point. This will wake up
      * waiters that subscribes to an area containing this location.
      */
-    public synchronized void signal(TrackerPoint st)
-    {   
-         signalled = new Date(); 
-         signalledPt = st;
-         notifyAll();
+    public void signal(TrackerPoint st)
+    {
+        if (st == null || st.getPosition() == null)
+            for (Waiter w : _waiters.values())
+                w.offer(null);
+        else
+            _areas.forEach(st.getPosition(), w -> w.offer(st));
     }
-    
+
+
+
     /**
      * Abort all waiters.
      */
-    public synchronized void abortAll(boolean retval)
+    public void abortAll(boolean retval)
     {
-       for (long x: _waiters.keySet())
-          _waiters.put(x, retval ? 1 : 2 );
-       notifyAll();   
+        for (Waiter w : _waiters.values())
+            w.abort(retval ? 1 : 2);
     }
-    
+
+
+
+    /** Return the number of waiters. */
+    public int nWaiters()
+        { return _waiters.size(); }
+
 }
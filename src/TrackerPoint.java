@@ -1,6 +1,6 @@
  
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -15,8 +15,11 @@
 
 package no.polaric.aprsd;
 import java.util.*;
-import java.io.Serializable;
+import java.io.*;
 import no.polaric.aprsd.filter.ViewFilter; 
+import no.polaric.aprsd.filter.RuleSet; 
+import no.polaric.aprsd.filter.TagRuleSet; 
+import no.polaric.aprsd.filter.Pred; 
 import java.time.format.DateTimeFormatter;  
 
 
@@ -25,10 +28,14 @@ import java.time.format.DateTimeFormatter;
  */
 public abstract class TrackerPoint extends PointObject implements Serializable, Cloneable
 {
+    private static final long serialVersionUID = 2101867653052834089L;
+
     private   static long        _nonMovingTime = 1000 * 60 * 4; 
     private   static Notifier    _change;
     protected static ColourTable _colTab = null;
     private   static long        _posUpdates = 0;
+    private   static final java.util.concurrent.atomic.AtomicLong _seqGen 
+                                 = new java.util.concurrent.atomic.AtomicLong();
     protected static long        _aprsPosUpdates = 0;
     
     
@@ -102,6 +109,10 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
     private boolean    _changing = false; 
     protected Date     _updated = new Date();  
     private Date       _lastChanged;        
+    private transient volatile long _seq = 0;   /* Change sequence number. Not saved, see readObject */
+    private transient volatile RuleSet.Cached _actions;   /* Results of filters, see RuleSet */
+    private transient TagRuleSet.State _tagState;         /* Results of tag rules, see TagRuleSet */
+    private transient int _tagInputs;                     /* Inputs to tag rules that have changed */
     protected boolean  _expired = false; 
             
     private   String   _alias;    
@@ -136,11 +147,18 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
     public synchronized void updatePosition(Date ts, LatLng newpos)
     { 
          _expired = false;
-         if (_position == null)
-             setChanging();
+         LatLng prev = _position;
          setUpdated(ts == null ? new Date() : ts);
          _position = newpos;
          _posUpdates++;
+         if (prev == null)
+             setChanging();
+         else if (newpos != null && (prev.getLat() != newpos.getLat() || prev.getLng() != newpos.getLng())) {
+             /* Moved, but not necessarily a significant change. Signal at the new position */
+             _seq = _seqGen.incrementAndGet();
+             if (_change != null)
+                 _change.signal(this);
+         }
     }
 
 
@@ -268,8 +286,12 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
     public int getMaxSpeed ()
        { return _trail.getMaxSpeed(); }
 
-    public void setSpeed (int s)
-       { _speed = s; }
+    public synchronized void setSpeed (int s) { 
+       if (s == _speed) 
+          return;
+       _speed = s; 
+       inputChanged(Pred.IN_SPEED); 
+    }
        
     public int getCourse ()
        { return _course; }
@@ -294,6 +316,72 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
     
     
     
+    /** 
+     * Return change sequence number. It is increased each time the point 
+     * changes in a way that is visible to clients. Numbers are increasing 
+     * over all points, see currentSeq().
+     */
+    public long getSeq()
+       { return _seq; }
+    
+    
+    
+    /** Return the cached results of filters (see RuleSet). */
+    public RuleSet.Cached getCachedActions()
+       { return _actions; }
+       
+    public void setCachedActions(RuleSet.Cached c)
+       { _actions = c; }
+       
+       
+    /* Tags are used by filters. Cached results are not valid anymore */
+    @Override protected void tagsChanged()
+       { _seq = _seqGen.incrementAndGet(); 
+         inputChanged(Pred.IN_TAGS); }
+       
+       
+       
+    /** Return the results of tag rules (see TagRuleSet). */
+    public synchronized TagRuleSet.State getTagState()
+       { return _tagState; }
+       
+    public synchronized void setTagState(TagRuleSet.State st)
+       { _tagState = st; }
+       
+       
+    /** 
+     * Indicate that inputs to filters and tag rules have changed (bitmask, see 
+     * Pred.inputs). To be called after the change. Cached results of filters are 
+     * not valid anymore, and tag rules that depend on the inputs are evaluated 
+     * again in the next autoTag().
+     */
+    public synchronized void inputChanged(int in) { 
+       _tagInputs |= in; 
+       _seq = _seqGen.incrementAndGet();
+    }
+       
+       
+    /** Return the inputs to tag rules that have changed and reset them. */
+    public synchronized int takeInputChanges()
+       { int x = _tagInputs; 
+         _tagInputs = 0; 
+         return x; }
+       
+       
+       
+    /** Return the highest change sequence number given to any point. */
+    public static long currentSeq()
+       { return _seqGen.get(); }
+       
+       
+    /* Numbers start at 0 when the server starts. A restored point gets a new one */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _seq = _seqGen.incrementAndGet();
+    }
+       
+       
+       
     /** Return time when last updated */              
     public Date getUpdated()
        { return _updated; }
@@ -322,6 +410,7 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
     {
         _changing = true;
         _lastChanged = new Date();  
+        _seq = _seqGen.incrementAndGet();
         if ( _change!= null ) 
             _change.signal(this); 
     } 
@@ -350,6 +439,7 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
            * it is regarded as not moving. 
            */
           if (_changing && (new Date()).getTime() > _lastChanged.getTime() + _nonMovingTime) {
+               _seq = _seqGen.incrementAndGet();
                if (signal && _change != null)
                   _change.signal(this);
                return (_changing = false);
@@ -388,6 +478,7 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
         StationDB.Hist hdb = _api.getDB().getHistDB(); 
         if (hdb != null && !_nodb)
             hdb.setAlias(this, a);
+         _api.getDB().textChanged(this);
          setChanging();
          return true;
       }
@@ -467,9 +558,13 @@ public abstract class TrackerPoint extends PointObject implements Serializable,
     {   
         if (d != null) 
         {
-           if (_description==null || !_description.equals(d))
-               setChanging(); 
+           boolean changed = (_description==null || !_description.equals(d));
            _description = d;  
+           if (changed) {
+               if (_api != null && _api.getDB() != null)
+                   _api.getDB().textChanged(this);
+               setChanging(); 
+           }
         }
     }
     
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -26,11 +26,14 @@ import java.util.function.*;
  */  
 public class Trail implements Iterable<Trail.Item>, Serializable
 {
+    private static final long serialVersionUID = -4895194102547354341L;
+
    
     /**
      * History item. It is a geographical point with timestamp and some additional info.
      */
     public static class Item extends TPoint {
+        private static final long serialVersionUID = -749324098555646639L;
        public int speed;
        public int course; 
        public Item(Date t, LatLng p, int sp, int crs, String path)
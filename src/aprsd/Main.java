@@ -334,6 +334,7 @@ public class Main implements ServerAPI
             ws = new WebServer(api, http_port);
 
             db = new StationDBImp(api);
+            ((StationDBImp) db).replayJournal();
             
             /* APRS objects */
             ownobjects = db.getOwnObjects(); 
@@ -120,7 +120,7 @@ public class InetChannel extends TcpChannel
     
     @Override protected void regHeard(AprsPacket p)
     {
-        if (p.via.matches(".*(TCPIP\\*|TCPXX\\*).*"))
+        if (p.getPath().isTcpIpUsed())
            _heard.put(p.from, new Heard(new Date(), p.via));
     }
     
@@ -1,6 +1,6 @@
  
 /* 
- * Copyright (C) 2014 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2014-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -22,6 +22,55 @@ import java.util.regex.*;
 public abstract class Pred
 {
    public abstract boolean eval(TrackerPoint obj, long scale); 
+   
+   
+   /* Inputs that the result of a predicate may depend on, see inputs() */
+   public static final int IN_TAGS   = 0x01;
+   public static final int IN_SOURCE = 0x02;
+   public static final int IN_PATH   = 0x04;
+   public static final int IN_SYMBOL = 0x08;
+   public static final int IN_SPEED  = 0x10;
+   public static final int IN_ALWAYS = 0x20;   /* Time, trail, other points, etc. */
+   public static final int IN_ALL    = 0x3f;
+   
+   
+   /** 
+    * Return the inputs (bitmask of IN_* values) that the result of the predicate 
+    * depends on. The result does not change unless one of the inputs has changed 
+    * (see TrackerPoint.inputChanged), except when IN_ALWAYS is included. The scale 
+    * is not counted as an input. 
+    */
+   public int inputs()
+      { return IN_ALWAYS; }
+   
+   
+   /** 
+    * Relative cost of evaluating the predicate. Conjunctions and disjunctions
+    * evaluate the cheapest predicates first. 
+    */
+   public int cost()
+      { return 1; }
+      
+      
+   /** 
+    * Add the scales where the result of the predicate may change. The result 
+    * is the same for all scales s where s >= b and s < the next b. 
+    */
+   public void scales(Set<Long> b) {}
+   
+   
+   /** Return false if the result may depend on other points than obj. */
+   public boolean cacheable()
+      { return true; }
+      
+      
+   /** 
+    * Predicate that is used more than once (e.g. a named predicate). The last
+    * result is remembered, so it is evaluated once for each point. Not if the
+    * result may change without the point changing (IN_ALWAYS).
+    */
+   public static Pred Memo(Pred p) 
+      { return (p.cost() <= 1 || !p.cacheable() || (p.inputs() & IN_ALWAYS) != 0 || p instanceof Memo ? p : new Memo(p)); }
       
    public static Pred FALSE()
       { return new FALSE(); }
@@ -89,6 +138,12 @@ class FALSE extends Pred
         public boolean eval(TrackerPoint p, long scale) {
             return false;
         }
+        
+        public int cost()
+            { return 0; }
+        
+        public int inputs()
+            { return 0; }
 }
 
 
@@ -98,6 +153,12 @@ class TRUE extends Pred
         public boolean eval(TrackerPoint p, long scale) {
             return true;
         }
+        
+        public int cost()
+            { return 0; }
+        
+        public int inputs()
+            { return 0; }
 }
 
 
@@ -108,17 +169,32 @@ class TRUE extends Pred
 class Tag extends Pred
 {
     private Pattern plustag, minustag;
+    private int tag = -1, plus, minus;   /* Tag numbers if not a regex */
 
     public Tag(String t) { 
         if (t.charAt(0)=='+')
             t = t.substring(1, t.length());
+        if (PointObject.isLiteralTag(t)) {
+            tag = PointObject.tagId(t);
+            plus = PointObject.tagId("+"+t);
+            minus = PointObject.tagId("-"+t);
+            return;
+        }
         plustag = Pattern.compile("\\+?(" + t + ")");
         minustag = Pattern.compile("\\-"+t);
     }
 
     public boolean eval(TrackerPoint p, long scale) { 
+        if (tag >= 0)
+            return ( (p.hasTag(tag) || p.hasTag(plus)) && !p.hasTag(minus) );
         return ( p._hasTag(plustag) && !p._hasTag(minustag) );
     }
+    
+    public int cost()
+        { return (tag >= 0 ? 1 : 10); }
+        
+    public int inputs()
+        { return IN_TAGS; }
 }
 
 
@@ -143,6 +219,12 @@ class Source extends Pred
             return false;
         return pattern.matcher(p.getSourceId()).matches(); 
     }
+    
+    public int cost()
+        { return 10; }
+        
+    public int inputs()
+        { return IN_SOURCE; }
 }
 
 
@@ -159,17 +241,42 @@ class Source extends Pred
 class AprsSym extends Pred 
 {
     private Pattern pattern;
+    private String literal;   /* Symbol if the regex is a plain symbol */
     
     public AprsSym(String regex) { 
         pattern = Pattern.compile(regex);
+        literal = _literal(regex);
+    }
+    
+    
+    /* The symbol if the regex matches one symbol only, otherwise null */
+    private static String _literal(String regex) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i+1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i+1)))
+                c = regex.charAt(++i);
+            else if ("[](){}.*+?^$|\\".indexOf(c) >= 0)
+                return null;
+            sb.append(c);
+        }
+        return (sb.length() == 2 ? sb.toString() : null);
     }
     
     public boolean eval(TrackerPoint p, long scale) { 
-        if (p instanceof AprsPoint) {
-            return pattern.matcher(""+((AprsPoint)p).getSymtab()+((AprsPoint)p).getSymbol()).matches();
+        if (p instanceof AprsPoint ap) {
+            if (literal != null)
+                return ap.getSymtab() == literal.charAt(0) && ap.getSymbol() == literal.charAt(1);
+            return pattern.matcher(String.valueOf(new char[] {ap.getSymtab(), ap.getSymbol()})).matches();
         }
         else return false;
     }
+    
+    public int cost()
+        { return (literal != null ? 1 : 10); }
+        
+    public int inputs()
+        { return IN_SYMBOL; }
 }
 
 
@@ -234,6 +341,12 @@ class Ident extends Pred
             return false;
         return pattern.matcher(obj.getIdent()).matches(); 
     }
+    
+    public int cost()
+        { return 10; }
+        
+    public int inputs()
+        { return 0; }
 }
 
 
@@ -269,6 +382,12 @@ class Path extends Pred
         else
             return false; 
     }
+    
+    public int cost()
+        { return 10; }
+        
+    public int inputs()
+        { return IN_PATH; }
 }
 
 
@@ -294,6 +413,11 @@ abstract class NumVal extends Pred
        { this.val = val; this._op = opVal(op); }
        
        
+    /* The value where the result changes */
+    protected long _limit() 
+       { return (_op == 3 || _op == 2 ? val + 1 : val); }
+       
+       
     protected boolean _eval(long val) {
        switch (_op) {
           case 1: return val < this.val; 
@@ -316,6 +440,15 @@ class Scale extends NumVal
     public boolean eval(TrackerPoint obj, long scale) {
         return _eval(scale); 
     }
+    
+    public int cost()
+        { return 0; }
+        
+    public void scales(Set<Long> b)
+        { b.add(_limit()); }
+        
+    public int inputs()
+        { return 0; }
 }
 
 
@@ -328,6 +461,9 @@ class Speed extends NumVal
     public boolean eval(TrackerPoint obj, long scale) {
        return _eval (obj.getSpeed());
     }
+    
+    public int inputs()
+        { return IN_SPEED; }
 }
 
 
@@ -385,6 +521,15 @@ class TrafficTo extends Pred
         }
         return false; 
     }
+    
+    public int cost()
+        { return 100; }
+        
+    public void scales(Set<Long> b)
+        { to.scales(b); }
+        
+    public boolean cacheable()
+        { return false; }
 }
 
 
@@ -420,8 +565,22 @@ class AND extends Pred
        return true; 
     }
     
+    public int cost() 
+       { return _cost(conj); }
+       
+    public void scales(Set<Long> b) 
+       { for (Pred p : conj) p.scales(b); }
+       
+    public boolean cacheable() 
+       { return conj.stream().allMatch(Pred::cacheable); }
+       
+    public int inputs() 
+       { return _inputs(conj); }
+       
+    
+    /* Cheapest first */
     void optimize() {
-        List<Pred> copy = new LinkedList<Pred>();
+        List<Pred> copy = new ArrayList<Pred>();
         for (Pred p : conj) {
            if (p instanceof AND pp) {
               for (Pred q : pp.conj)
@@ -430,9 +589,26 @@ class AND extends Pred
            else
               copy.add(p); 
         }    
+        copy.sort(Comparator.comparingInt(Pred::cost));
         conj = copy; 
     }
     
+    
+    static int _cost(List<Pred> pl) {
+       int c = 0;
+       for (Pred p : pl)
+          c += p.cost();
+       return c;
+    }
+    
+    
+    static int _inputs(List<Pred> pl) {
+       int x = 0;
+       for (Pred p : pl)
+          x |= p.inputs();
+       return x;
+    }
+    
 }
 
 
@@ -468,13 +644,25 @@ class OR extends Pred
       return false; 
    }
    
+   public int cost() 
+      { return AND._cost(disj); }
+       
+   public void scales(Set<Long> b) 
+      { for (Pred p : disj) p.scales(b); }
+       
+   public boolean cacheable() 
+      { return disj.stream().allMatch(Pred::cacheable); }
+       
+   public int inputs() 
+      { return AND._inputs(disj); }
+   
    
    /* 
     * IMPORTANT: Be sure that optimization does not change other nodes
     * than this, since they may be referenced from elsewhere. 
     */
    void optimize() {
-        List<Pred> copy = new LinkedList<Pred>();
+        List<Pred> copy = new ArrayList<Pred>();
         for (Pred p : disj) {
            if (p instanceof OR pp) {
               for (Pred q : pp.disj)
@@ -483,6 +671,7 @@ class OR extends Pred
            else
               copy.add(p); 
        }    
+       copy.sort(Comparator.comparingInt(Pred::cost));
        disj = copy; 
     }
 }
@@ -502,6 +691,18 @@ class NOT extends Pred
         public boolean eval (TrackerPoint obj, long scale)
             { return !pred.eval(obj, scale); }
             
+        public int cost() 
+            { return pred.cost(); }
+       
+        public void scales(Set<Long> b) 
+            { pred.scales(b); }
+       
+        public boolean cacheable() 
+            { return pred.cacheable(); }
+            
+        public int inputs() 
+            { return pred.inputs(); }
+            
         static Pred optimize(NOT p) {
            if (p.pred instanceof NOT pp) {
                return pp.pred; 
@@ -511,3 +712,38 @@ class NOT extends Pred
         }
 }
 
+
+
+/**
+ * Remembers the last result. The result is reused if the point, its change 
+ * number and the scale are the same. 
+ */
+class Memo extends Pred
+{
+    private record Last(TrackerPoint obj, long seq, long scale, boolean res) {}
+    
+    private Pred pred;
+    private volatile Last last;
+    
+    public Memo(Pred p)
+        { pred = p; }
+        
+    public boolean eval(TrackerPoint obj, long scale) {
+        Last l = last;
+        long seq = (obj == null ? 0 : obj.getSeq());
+        if (l != null && l.obj == obj && l.seq == seq && l.scale == scale)
+            return l.res;
+        boolean res = pred.eval(obj, scale);
+        last = new Last(obj, seq, scale, res);
+        return res;
+    }
+    
+    public int cost() 
+        { return pred.cost(); }
+       
+    public void scales(Set<Long> b) 
+        { pred.scales(b); }
+       
+    public int inputs() 
+        { return pred.inputs(); }
+}
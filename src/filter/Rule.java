@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -14,6 +14,7 @@
 
 package no.polaric.aprsd.filter;
 import no.polaric.aprsd.*;
+import java.util.*;
 
 
 
@@ -26,6 +27,21 @@ public interface Rule
    public Action apply(TrackerPoint obj, long scale); 
    
    
+   /** Add the scales where the result of the rule may change, see Pred.scales. */
+   public default void scales(Set<Long> b) {}
+   
+   
+   /** Return false if the result may depend on other points than obj. */
+   public default boolean cacheable() 
+      { return true; }
+      
+      
+   /** Return the inputs that the result depends on, see Pred.inputs. */
+   public default int inputs() 
+      { return Pred.IN_ALWAYS; }
+   
+   
+   
    public class Single implements Rule {
       private Pred pred; 
       private Action action;
@@ -49,6 +65,16 @@ public interface Rule
           else
              return null;
       }
+      
+      
+      @Override public void scales(Set<Long> b)
+         { pred.scales(b); }
+         
+      @Override public boolean cacheable()
+         { return pred.cacheable(); }
+         
+      @Override public int inputs()
+         { return pred.inputs(); }
    }
 }
 
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2016-2021 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2016-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -21,11 +21,41 @@ import no.polaric.aprsd.*;
 /**
  * A sequence of rules that are executed in order. 
  * Resulting actions are combined by using the merge method.
+ *
+ * The resulting action is cached on the point (see TrackerPoint.getCachedActions) 
+ * and reused as long as the point has not changed (see TrackerPoint.getSeq). The
+ * scales where scale predicates change their result divide the scale into tiers. 
+ * The action is the same for all scales in a tier, so there is one cached action 
+ * for each tier. Rulesets with predicates that depend on other points (TRAFFIC) 
+ * are not cached. Cached actions must not be modified. 
  */
 
 public class RuleSet implements Rule
 {
-    private List<Rule> rlist = new LinkedList<Rule>(); 
+    /** 
+     * Cached action for a point: a short list, most recently used first. 
+     */
+    public static final class Cached {
+        final RuleSet rules; 
+        final int tier;
+        final long seq, expires; 
+        final Action action;
+        final Cached next;
+        
+        Cached(RuleSet r, int t, long s, long e, Action a, Cached n)
+           { rules = r; tier = t; seq = s; expires = e; action = a; next = n; }
+    }
+    
+    private static final int MAXCACHED = 8;       /* Max number of cached actions per point */
+    private static final long MAXAGE = 60000;     /* Max age of cached action (ms) */
+    private static final long MAXAGE_ALWAYS = 5000;  /* Max age if results may change with time, see Pred.IN_ALWAYS */
+    private static final Metrics.Counter _hits = Metrics.counter("filter.cache.hit");
+    private static final Metrics.Counter _misses = Metrics.counter("filter.cache.miss");
+    
+    private List<Rule> rlist = new ArrayList<Rule>(); 
+    private volatile long[] _tiers;               /* Limits of scale tiers. Null if not computed */
+    private boolean _cacheable; 
+    private long _maxage;
     private Set<String> _groups = new HashSet<String>();
     private List<String> _tags   = new ArrayList<String>(); 
     private boolean _public = false; 
@@ -88,9 +118,11 @@ public class RuleSet implements Rule
      * Add a rule to the ruleset.
      * @param r rule to be added. 
      */
-    public void add(Rule r)
-       { if (r != null) 
-           rlist.add(r); }
+    public void add(Rule r) { 
+        if (r != null) 
+           rlist.add(r); 
+        _tiers = null;
+    }
        
     /**
      * Create and add a rule to the ruleset. 
@@ -121,6 +153,46 @@ public class RuleSet implements Rule
      * @return action - object that tells how the argument is going to be displayed. 
      */
     public Action apply(TrackerPoint p, long scale) {
+       long[] tiers = _tiers;
+       if (tiers == null)
+          tiers = _compile();
+       if (p == null || !_cacheable)
+          return _apply(p, scale);
+       
+       int tier = Arrays.binarySearch(tiers, scale);
+       tier = (tier >= 0 ? tier + 1 : -tier - 1);
+       long seq = p.getSeq(); 
+       long now = System.currentTimeMillis();
+       Cached first = p.getCachedActions();
+       for (Cached c = first; c != null; c = c.next)
+          if (c.rules == this && c.tier == tier) {
+             if (c.seq == seq && now < c.expires) {
+                _hits.inc();
+                return c.action;
+             }
+             break;
+          }
+          
+       _misses.inc();
+       Action a = _apply(p, scale);
+       
+       /* Put first in the list. Remove the old one and the least recently used */
+       List<Cached> keep = new ArrayList<Cached>();
+       for (Cached c = first; c != null && keep.size() < MAXCACHED-1; c = c.next)
+          if (c.rules != this || c.tier != tier)
+             keep.add(c);
+       Cached res = null;
+       for (int i = keep.size()-1; i >= 0; i--) {
+          Cached c = keep.get(i);
+          res = new Cached(c.rules, c.tier, c.seq, c.expires, c.action, res);
+       }
+       p.setCachedActions(new Cached(this, tier, seq, now + _maxage, a, res));
+       return a;
+    }
+    
+    
+    
+    private Action _apply(TrackerPoint p, long scale) {
        /* Start with a null action.  An action that changes nothing. */
        Action a = Action.NULL(); 
 
@@ -131,5 +203,43 @@ public class RuleSet implements Rule
        return a; 
     }
     
+    
+    
+    /* Find the scale tiers and if the result can be cached */
+    private synchronized long[] _compile() {
+       Set<Long> b = new TreeSet<Long>();
+       scales(b);
+       _cacheable = cacheable();
+       _maxage = ((inputs() & Pred.IN_ALWAYS) != 0 ? MAXAGE_ALWAYS : MAXAGE);
+       long[] tiers = new long[b.size()];
+       int i = 0;
+       for (long x : b)
+          tiers[i++] = x;
+       _tiers = tiers;
+       return tiers;
+    }
+    
+    
+    @Override public void scales(Set<Long> b) {
+       for (Rule r: rlist)
+          r.scales(b);
+    }
+    
+    
+    @Override public boolean cacheable() {
+       for (Rule r: rlist)
+          if (!r.cacheable())
+             return false;
+       return true;
+    }
+    
+    
+    @Override public int inputs() {
+       int x = 0;
+       for (Rule r: rlist)
+          x |= r.inputs();
+       return x;
+    }
+    
 }
 
@@ -1,5 +1,5 @@
     /* 
- * Copyright (C) 2015-2020 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2015-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -26,6 +26,21 @@ public class TagRule
         pred = p; 
         action = a; 
     }
+    
+    
+    /** Evaluate the predicate of the rule. */
+    public boolean eval(TrackerPoint obj)
+        { return pred.eval(obj, 0); }
+        
+        
+    /** Return the tags that are set by the rule. */
+    public List<String> getAction()
+        { return action; }
+        
+        
+    /** Return the inputs that the predicate depends on (see Pred.inputs). */
+    public int inputs()
+        { return pred.inputs(); }
    
    
    /**
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2015-2020 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2015-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -21,35 +21,98 @@ import no.polaric.aprsd.*;
 /**
  * A sequence of rules that are executed in order. 
  * Resulting actions are combined by using the merge method.
+ *
+ * Rules are evaluated again for a point only when the inputs they depend 
+ * on have changed (see Pred.inputs and TrackerPoint.inputChanged). Results 
+ * of the rules are kept for each point (State). Each time the ruleset is 
+ * applied, a tag is set if any rule with that tag is true, otherwise removed. 
+ * This also removes such tags if they are set by other means. Tags are only 
+ * set or removed when this changes something, so the hist database is only 
+ * written to on transitions. 
+ *
+ * Rules that depend on tags see the tags as they were before the rules 
+ * were applied. Tags that are changed are inputs to the next evaluation. 
  */
 
 public class TagRuleSet 
 {
+    /** 
+     * Results of the rules for a point. Valid for one ruleset. 
+     */
+    public static class State {
+        private final TagRuleSet rules; 
+        private final BitSet results = new BitSet(); 
+        private boolean evaluated = false; 
+        
+        State(TagRuleSet r)
+            { rules = r; }
+    }
+    
+
     private List<TagRule> rlist = new ArrayList<TagRule>(); 
+    private Map<String, BitSet> _rulesByTag = new HashMap<String, BitSet>();   /* Rules setting each tag */
+    
+    private static final Metrics.Counter _evals = Metrics.counter("tagrules.eval");
+    private static final Metrics.Counter _skipped = Metrics.counter("tagrules.skip");
+    
     
        
     /**
      * Add a rule to the ruleset.
      * @param r rule to be added. 
      */
-    public void add(TagRule r)
-       { rlist.add(r); }
+    public void add(TagRule r) { 
+        for (String t: r.getAction())
+            _rulesByTag.computeIfAbsent(t, k -> new BitSet()).set(rlist.size());
+        rlist.add(r); 
+    }
        
 
 
+    /* Get the results for the point. Start over if they are for another ruleset */
+    private State _state(TrackerPoint p) {
+        synchronized(p) {
+            State st = p.getTagState();
+            if (st == null || st.rules != this) {
+                st = new State(this);
+                p.setTagState(st);
+            }
+            return st;
+        }
+    }
+    
+    
+    
     /**
-     * Apply the ruleset to a point.
+     * Apply the ruleset to a point. Only the rules that depend on inputs 
+     * that have changed since last time are evaluated. 
      * @param p TrackerPoint object.  
      */
     public void apply(TrackerPoint p) {
-        /* First, remove tags for rules that evaluates to false */
-        for (TagRule r: rlist)
-            r.applyRemove(p);
+        State st = _state(p);
+        synchronized(st) {
+            int changed = p.takeInputChanges() | Pred.IN_ALWAYS; 
+            int n = 0;
+            
+            for (int i=0; i<rlist.size(); i++) {
+                TagRule r = rlist.get(i);
+                if (st.evaluated && (r.inputs() & changed) == 0)
+                    continue;
+                n++;
+                st.results.set(i, r.eval(p));
+            }
+            st.evaluated = true;
+            _evals.add(n);
+            _skipped.add(rlist.size() - n);
             
-        /* Then, add tags for rules that evaluates to true */
-        for (TagRule r: rlist)
-            r.apply(p); 
+            /* Set the tags where a rule is true, remove the others */
+            for (Map.Entry<String, BitSet> t: _rulesByTag.entrySet()) {
+                if (st.results.intersects(t.getValue()))
+                    p.setTag(t.getKey());
+                else
+                    p.removeTag(t.getKey());
+            }
+        }
     }
     
 }
-
@@ -39,7 +39,7 @@ assignment : IDENT '=' expr ';'
                               {  if ($1.matches("infra|INFRA|moving|MOVING|fulldigi|FULLDIGI|igate|IGATE"))
                                    yyerror("Cannot redefine predicate '"+$1+"'"); 
                                 else
-                                   predicates.put($1, (Pred) $3); 
+                                   predicates.put($1, Pred.Memo((Pred) $3)); 
                               }    
            | error
            ; 
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2017-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2017-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -34,38 +34,86 @@ import no.polaric.aprsd.filter.*;
 public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
 {
     int _max_ovr_size = 20000;
+    int _budget = 500;          /* Max time (ms) to add points to an overlay */
+    int _clusterGrid = 32;      /* Number of cluster cells across the view */
+    
+    private static final Metrics.Histogram _overlayTime = Metrics.histogram("map.overlay");
+    private static final Metrics.Histogram _metaTime = Metrics.histogram("map.overlay.meta");
+    private static final Metrics.Counter _clustered = Metrics.counter("map.clustered");
     
     
     public class Client extends MapUpdater.Client 
     {
-        private Set<String> items = new HashSet<String>(1000);
+        /* What is sent to the client for each point: Sequence number and 
+         * time of the newest and oldest trail point (0 if no trail) */
+        private static class Sent {
+            final long seq, tfirst, tlast; 
+            Sent(long s, long f, long l) 
+                { seq = s; tfirst = f; tlast = l; }
+        }
+        
+        private Map<String, Sent> items = new HashMap<String, Sent>(1000);
+        private boolean _full = true; 
        
         public Client(Session conn) 
             {  super(conn); }
    
           
-        public void subscribe() {
+        public void subscribe(boolean changed) {
             /* It is possible to remove only items that move out of the viewport? 
              * Or could items be expired. Use a LRU cache semantics? 
+             * A full snapshot is sent only if the view is changed. 
              */
-            if (!_keep) 
+            if (!_keep && changed) {
                 items.clear();
+                _full = true;
+            }
         }
           
    
+        /* Encoder for compact binary overlays. Created when needed */
+        private OverlayEncoder _encoder;
+        
+        
+        private JsOverlay createOverlay(boolean metaonly) {
+            _updates++;
+            JsOverlay mu = new JsOverlay(_filter);
+            mu.authorization = _auth;
+            if (!metaonly) {
+                mu.seq = TrackerPoint.currentSeq();
+                mu.full = _full;
+                addPoints(mu);
+                _full = false;
+            }
+            return mu;
+        }
+        
+        
         /** Returns the overlay. JSON format. */
         @Override public String getOverlayData(boolean metaonly) {
+            long t = System.nanoTime();
             try {
-                _updates++;
-                JsOverlay mu = new JsOverlay(_filter);
-                if (mu==null) {
-                    _api.log().error("JsonMapUpdater", "Cannot allocate JsOverlay object.");
-                    return null;
-                }
-                mu.authorization = _auth;
-                if (!metaonly)
-                    addPoints(mu);
-                return serializeJson(mu);
+                String res = serializeJson(createOverlay(metaonly));
+                (metaonly ? _metaTime : _overlayTime).since(t);
+                return res;
+            }
+            catch (Exception e) {
+                _api.log().error("JsonMapUpdater", "Exception in generating overlay.");
+                e.printStackTrace(System.out);
+                return null;
+            }
+        }
+        
+        
+        /** Returns the overlay. Compact binary encoding, see OverlayEncoder. */
+        @Override public byte[] getOverlayBinary() {
+            long t = System.nanoTime();
+            try {
+                if (_encoder == null)
+                    _encoder = new OverlayEncoder();
+                byte[] res = _encoder.encode(createOverlay(false));
+                _overlayTime.since(t);
+                return res;
             }
             catch (Exception e) {
                 _api.log().error("JsonMapUpdater", "Exception in generating overlay.");
@@ -73,6 +121,10 @@ public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
                 return null;
             }
         }
+        
+        
+        @Override public boolean hasBinary()
+            { return true; }
        
        
        
@@ -87,28 +139,54 @@ public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
                 mu.points = new LinkedList<JsPoint>();
                 mu.delete = new LinkedList<String>();
                 mu.lines = new LinkedList<JsLine>();
-                boolean allowed = (login() && trusted()); 
+                boolean login = login();
+                boolean allowed = (login && trusted()); 
                 RuleSet vfilt = ViewFilter.getFilter(_filter, allowed);      
-                List<TrackerPoint> itemlist =  _api.getDB().search(_uleft, _lright, vfilt);
+                
+                /* 
+                 * Points are searched and filtered by the shared cache. Hidden points are 
+                 * skipped by the search. Points without the requested tag are left out 
+                 * here (the cache is shared by clients with different tags), so they do 
+                 * not count when checking if there are too many points. 
+                 */
+                List<OverlayCache.Entry> itemlist = new ArrayList<OverlayCache.Entry>(1000);
+                _cache.forEach(vfilt, _scale, login, allowed, _uleft, _lright, e -> {
+                    if (!e.hidden && (_tag == null || e.point.hasTag(_tag)) && e.point.isInside(_uleft, _lright, 0, 0))
+                        itemlist.add(e);
+                });
+                /* Too many points. Send clusters instead */
                 if (itemlist.size() > _max_ovr_size) {
                     mu.overload = true;
+                    addClusters(mu, itemlist, 0);
                     return;
                 }
                 
-                for (TrackerPoint s:itemlist) 
+                var ai = getAuthInfo();
+                long deadline = System.nanoTime() + _budget * 1000000L;
+                for (int i=0; i<itemlist.size(); i++) 
                 {          
-                    if (!s.isChanging() && items.contains(s.getIdent()))
+                    OverlayCache.Entry e = itemlist.get(i);
+                    
+                    /* 
+                     * Time budget exceeded. The rest of the points are sent as clusters, 
+                     * and as points in the next update. 
+                     */
+                    if ((i & 0xff) == 0xff && System.nanoTime() > deadline) {
+                        mu.overload = true;
+                        addClusters(mu, itemlist, i);
+                        setPending();
+                        break;
+                    }
+                    TrackerPoint s = e.point;
+                    Sent sent = items.get(s.getIdent());
+                    if (sent != null && sent.seq >= e.seq)
                         continue;
                                   
-                    items.add(s.getIdent());
+                    items.put(s.getIdent(), new Sent(e.seq, tFirst(e.js), tLast(e.js)));
                     
-                    /* Apply filter. */ 
-                    Action action = vfilt.apply(s, _scale); 
-                    if ( s.getPosition() == null ||
-                         ( s.getSource() != null && s.getSource().isRestricted() && !action.isPublic() && !allowed) ||
-                           action.hideAll() ||
-                           (_tag != null && !s.hasTag(_tag))
-                        )
+                    /* Filter is applied by the cache */ 
+                    Action action = e.action; 
+                    if ( e.hidden || (_tag != null && !s.hasTag(_tag)) )
                       continue; 
 
                     /* Add point to delete-list */
@@ -118,8 +196,12 @@ public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
                         mu.delete.add(s.getIdent());
                     }
                     else {  
-                        /* Add item to overlay */
-                        JsPoint p = createPoint(s, action);
+                        /* Add item to overlay. Indicate if user has authorization to change point. */
+                        JsPoint p = e.js;
+                        JsTrail trail = (p == null ? null : deltaTrail(p.trail, sent));
+                        boolean sarAuth = (ai != null && ai.itemSarAuth(s));
+                        if (p != null && (sarAuth || trail != p.trail))
+                            p = copyPoint(p, sarAuth, trail);
                         if (p!=null) 
                             mu.points.add(p);
                                 
@@ -141,6 +223,50 @@ public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
         
 
         
+        /**
+         * Add clusters of the points in itemlist, starting at index 'from'. 
+         * The view is divided into a grid and the visible points in each cell are 
+         * counted. Points the client already has are not counted.
+         */
+        private void addClusters(JsOverlay mu, List<OverlayCache.Entry> itemlist, int from) 
+        {
+            double x1 = _uleft.getLng(), x2 = _lright.getLng();
+            if (x2 < x1)
+                x2 += 360;
+            double y1 = _lright.getLat(), y2 = _uleft.getLat();
+            double cw = Math.max(x2 - x1, 1e-6) / _clusterGrid, ch = Math.max(y2 - y1, 1e-6) / _clusterGrid;
+            Map<Integer, JsCluster> cells = new HashMap<Integer, JsCluster>();
+            
+            for (int i=from; i<itemlist.size(); i++) {
+                OverlayCache.Entry e = itemlist.get(i);
+                TrackerPoint s = e.point;
+                Sent sent = items.get(s.getIdent());
+                if ((sent != null && sent.seq >= e.seq) || e.js == null ||  
+                      e.hidden || (_tag != null && !s.hasTag(_tag)))
+                    continue;
+                double x = s.getPosition().getLng(), y = s.getPosition().getLat();
+                if (x < x1)
+                    x += 360;
+                int col = Math.max(0, Math.min(_clusterGrid-1, (int) ((x - x1) / cw)));
+                int row = Math.max(0, Math.min(_clusterGrid-1, (int) ((y - y1) / ch)));
+                JsCluster c = cells.computeIfAbsent(row * _clusterGrid + col, k -> new JsCluster());
+                
+                /* Position is the mean of the points */
+                c.count++;
+                c.pos[0] += (x - c.pos[0]) / c.count;
+                c.pos[1] += (y - c.pos[1]) / c.count;
+            }
+            mu.clusters = new ArrayList<JsCluster>(cells.size());
+            for (JsCluster c : cells.values()) {
+                c.pos[0] = roundDeg(c.pos[0] > 180 ? c.pos[0] - 360 : c.pos[0]);
+                c.pos[1] = roundDeg(c.pos[1]);
+                mu.clusters.add(c);
+            }
+            _clustered.inc();
+        }
+        
+        
+
         /**
          * Convert sign to JSON Point.
          */
@@ -163,75 +289,38 @@ public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
         
 
        
-        /** Convert Tracker point to JSON point. 
-         * Return null if point has no position.  
-         */
-        private JsPoint createPoint(TrackerPoint s, Action action) {
-            LatLng ref = s.getPosition(); 
-            if (ref == null) 
-                return null;
-             
-            JsPoint x  = new JsPoint();
-            
-            /* Indicate if user has authorization to change point. */
-            var ai = getAuthInfo();
-            x.sarAuth = (ai != null && getAuthInfo().itemSarAuth(s)); 
-            
-            x.ident   = s.getIdent();
-            x.label   = createLabel(s, action);
-            x.pos     = new double[] {roundDeg(ref.getLng()), roundDeg(ref.getLat())};
-            x.title   = s.getDescr() == null ? "" : fixText(s.getDescr()); 
-            x.redraw  = s.isChanging();
-            x.own     = (s instanceof AprsObject) 
-                        && _api.getDB().getOwnObjects().hasObject(s.getIdent().replaceFirst("@.*",""));
-            x.aprs    = (s instanceof AprsPoint); 
-            x.telemetry = s.hasTag("APRS.telemetry");
-           
-            String icon = action.getIcon(s.getIcon()); 
-            if (s.iconOverride())  
-               icon = s.getIcon(); 
-            x.icon = "/icons/"+ (icon != null ? icon : _icon); 
-            x.trail = createTrail(s, action);
-            return x;
+        /* Time of the newest and oldest trail point. Trails are newest first */
+        private long tFirst(JsPoint p) {
+            return (p == null || p.trail == null || p.trail.linestring.isEmpty()) ? 
+                0 : p.trail.linestring.get(0).time.getTime();
         }
-       
-       
-       
-        /** Create label or return null if label is to be hidden. */
-        private JsLabel createLabel(TrackerPoint s, Action action) {
-            boolean showSarInfo = login() || !action.hideAlias();
-            
-            JsLabel lbl = new JsLabel();
-           
-            lbl.style = (!(s.getTrail().isEmpty()) ? "lmoving" : "lstill");
-            if (s instanceof AprsObject)
-                lbl.style = "lobject"; 
-            lbl.style += " "+ action.getStyle();
-            lbl.id = s.getDisplayId(showSarInfo);
-            lbl.hidden = (action.hideIdent() || s.isLabelHidden() );
-            return lbl;
+        
+        private long tLast(JsPoint p) {
+            return (p == null || p.trail == null || p.trail.linestring.isEmpty()) ? 
+                0 : p.trail.linestring.get(p.trail.linestring.size()-1).time.getTime();
         }
-       
-       
-       
-        private JsTrail createTrail(TrackerPoint s, Action action) {
-            Seq<TPoint> h = s.getTrail()
-               .subTrail(action.getTrailTime(), action.getTrailLen(), 
-                  tp -> tp.isInside(_uleft, _lright, 0.7, 0.7) );     
-          
-            if (!action.hideTrail() && !h.isEmpty()) {
-                JsTrail res = new JsTrail(s.getTrailColor()); 
-                h.forEach( it -> {
-                    LatLng pos = (LatLng) it.getPosition();
-                    res.linestring.add(new JsTPoint(it));
-                 });
-                return res;
-            }
-            else return null;
+        
+        
+        
+        /*
+         * If the client can append to trails and the oldest point of the trail 
+         * is the same as what is sent before, return a trail with only the points 
+         * that are newer than what is sent before. Otherwise return the trail. 
+         */
+        private JsTrail deltaTrail(JsTrail t, Sent sent) {
+            if (!_delta || t == null || sent == null || sent.tlast == 0 || t.linestring.isEmpty()
+                  || t.linestring.get(t.linestring.size()-1).time.getTime() != sent.tlast)
+                return t;
+            JsTrail res = new JsTrail(t.style);
+            res.append = true;
+            for (JsTPoint tp : t.linestring)
+                if (tp.time.getTime() > sent.tfirst)
+                    res.linestring.add(tp);
+            return res;
         }
-       
-       
-       
+        
+        
+        
         /**
          * Display a message path between nodes. 
          */
@@ -267,12 +356,217 @@ public class JsonMapUpdater extends MapUpdater implements Notifier, JsonPoints
     
     
     
+    /** Convert Tracker point to JSON point. 
+     * Return null if point has no position. Points are shared by clients, 
+     * sarAuth is set per client. Trails are shown within uleft/lright.
+     */
+    protected JsPoint createPoint(TrackerPoint s, Action action, boolean login, LatLng uleft, LatLng lright) {
+        LatLng ref = s.getPosition(); 
+        if (ref == null) 
+            return null;
+         
+        JsPoint x  = new JsPoint();
+        
+        x.ident   = s.getIdent();
+        x.label   = createLabel(s, action, login);
+        x.pos     = new double[] {roundDeg(ref.getLng()), roundDeg(ref.getLat())};
+        x.title   = s.getDescr() == null ? "" : fixText(s.getDescr()); 
+        x.redraw  = s.isChanging();
+        x.own     = (s instanceof AprsObject) 
+                    && _api.getDB().getOwnObjects().hasObject(s.getIdent().replaceFirst("@.*",""));
+        x.aprs    = (s instanceof AprsPoint); 
+        x.telemetry = s.hasTag("APRS.telemetry");
+       
+        String icon = action.getIcon(s.getIcon()); 
+        if (s.iconOverride())  
+           icon = s.getIcon(); 
+        x.icon = "/icons/"+ (icon != null ? icon : _icon); 
+        x.trail = createTrail(s, action, uleft, lright);
+        return x;
+    }
+       
+       
+       
+    /** Create label or return null if label is to be hidden. */
+    private JsLabel createLabel(TrackerPoint s, Action action, boolean login) {
+    boolean showSarInfo = login || !action.hideAlias();
+        
+        JsLabel lbl = new JsLabel();
+       
+        lbl.style = (!(s.getTrail().isEmpty()) ? "lmoving" : "lstill");
+        if (s instanceof AprsObject)
+            lbl.style = "lobject"; 
+        lbl.style += " "+ action.getStyle();
+        lbl.id = s.getDisplayId(showSarInfo);
+        lbl.hidden = (action.hideIdent() || s.isLabelHidden() );
+        return lbl;
+    }
+       
+       
+       
+    private JsTrail createTrail(TrackerPoint s, Action action, LatLng uleft, LatLng lright) {
+        Seq<TPoint> h = s.getTrail()
+           .subTrail(action.getTrailTime(), action.getTrailLen(), 
+              tp -> tp.isInside(uleft, lright, 0.7, 0.7) );     
+      
+        if (!action.hideTrail() && !h.isEmpty()) {
+            JsTrail res = new JsTrail(s.getTrailColor()); 
+            h.forEach( it -> {
+                LatLng pos = (LatLng) it.getPosition();
+                res.linestring.add(new JsTPoint(it));
+             });
+            return res;
+        }
+        else return null;
+    }
+   
+   
+   
+    /* Copy of point with another sarAuth and trail. Points from the cache are shared */
+    private static JsPoint copyPoint(JsPoint p, boolean sarAuth, JsTrail trail) {
+        JsPoint x = new JsPoint();
+        x.ident = p.ident; x.type = p.type; x.pos = p.pos; x.title = p.title;
+        x.redraw = p.redraw; x.own = p.own; x.aprs = p.aprs; x.telemetry = p.telemetry;
+        x.icon = p.icon; x.href = p.href; x.label = p.label; x.trail = trail;
+        x.sarAuth = sarAuth;
+        return x;
+    }
+   
+   
+   
+   /**
+    * Return an overlay with the points in the area that have changed after the 
+    * given sequence number (all points if since is 0). This is for clients that 
+    * do not keep a session (long polling), see MapPollApi. 
+    *
+    * @param points Points to consider. If null, all points in the area.
+    */
+   public JsOverlay getOverlay(AuthInfo auth, String filter, LatLng uleft, LatLng lright, 
+            long scale, String tag, long since, Collection<TrackerPoint> points)
+   {
+      long t = System.nanoTime();
+      JsOverlay mu = new JsOverlay(filter);
+      mu.authorization = auth;
+      mu.seq = TrackerPoint.currentSeq();
+      mu.full = (since <= 0);
+      mu.points = new LinkedList<JsPoint>();
+      mu.delete = new LinkedList<String>();
+      mu.lines = new LinkedList<JsLine>();
+      if (_api.getDB() == null)
+         return mu;
+      
+      boolean login = (auth != null && auth.login());
+      boolean allowed = (login && trusted()); 
+      RuleSet vfilt = ViewFilter.getFilter(filter, allowed);
+      List<OverlayCache.Entry> itemlist = new ArrayList<OverlayCache.Entry>();
+      
+      /* Stop collecting when there are too many points */
+      if (points == null)
+         _cache.forEach(vfilt, scale, login, allowed, uleft, lright, e -> {
+            if (itemlist.size() <= _max_ovr_size && e.seq > since && !e.hidden 
+                  && (tag == null || e.point.hasTag(tag)) && e.point.isInside(uleft, lright, 0, 0))
+               itemlist.add(e);
+         });
+      else
+         for (TrackerPoint s : points) {
+            long seq = s.getSeq();
+            if (itemlist.size() > _max_ovr_size)
+               break;
+            if (seq <= since || !s.isInside(uleft, lright, 0, 0))
+               continue;
+            Action action = vfilt.apply(s, scale);
+            boolean hidden = (s.getSource() != null && s.getSource().isRestricted() && !action.isPublic() && !allowed)
+                || action.hideAll();
+            JsPoint js = (hidden || !s.visible() ? null : createPoint(s, action, login, uleft, lright));
+            itemlist.add(new OverlayCache.Entry(s, seq, action, hidden, js));
+         }
+      
+      if (itemlist.size() > _max_ovr_size) {
+         mu.overload = true;
+         return mu;
+      }
+      for (OverlayCache.Entry e : itemlist) {
+         if (e.hidden || (tag != null && !e.point.hasTag(tag)))
+            continue;
+         if (e.js == null) {
+            if (since > 0)
+               mu.delete.add(e.point.getIdent());
+         }
+         else 
+            mu.points.add(auth != null && auth.itemSarAuth(e.point) ? copyPoint(e.js, true, e.js.trail) : e.js);
+      }
+      _overlayTime.since(t);
+      return mu;
+   }
+   
+   
+   
+   /**
+    * Return an overlay with the points in a tile, for anonymous clients. Only 
+    * public filters are used. The scale is derived from the tile level. seq is 
+    * the highest change sequence number of the points in the tile, so 
+    * seq and the number of points identify the content, see MapTileApi.
+    */
+   public JsOverlay getTile(String filter, int level, int tx, int ty)
+   {
+      long t = System.nanoTime();
+      JsOverlay mu = new JsOverlay(filter);
+      mu.full = true; 
+      mu.points = new LinkedList<JsPoint>();
+      if (_api.getDB() == null)
+         return mu;
+      
+      RuleSet vfilt = ViewFilter.getFilter(filter, false);
+      long scale = Math.round(559082264.0 / (1L << level));
+      long[] seq = {0};
+      int[] n = {0};
+      _cache.forEach(vfilt, scale, false, false, level, tx, ty, e -> {
+         seq[0] = Math.max(seq[0], e.seq);
+         if (!e.hidden && e.js != null && ++n[0] <= _max_ovr_size)
+            mu.points.add(e.js);
+      });
+      if (n[0] > _max_ovr_size) {
+         mu.overload = true;
+         mu.points.clear();
+      }
+      mu.seq = seq[0];
+      _overlayTime.since(t);
+      return mu;
+   }
+   
+   
+   
    /* Factory method. */
    @Override public WsNotifier.Client newClient(Session ses) 
       { return new Client(ses); }
     
     
+   /* Filtered points shared by clients */
+   private final OverlayCache _cache;
+   
+   
+   
+   /** Mark cached tiles at the position of the point as changed. */
+   @Override public void signal(TrackerPoint st) {
+      if (st != null && _cache != null)
+         _cache.invalidate(st.getPosition());
+      super.signal(st);
+   }
+   
+   
+   @Override protected void updateClients() {
+      if (_cache != null)
+         _cache.sweep();
+      super.updateClients();
+   }
+   
+    
    public JsonMapUpdater(ServerAPI api, boolean trust) { 
       super(api, trust); 
+      _max_ovr_size = api.getIntProperty("httpserver.overlay.maxpoints", 20000);
+      _budget = api.getIntProperty("httpserver.overlay.budget", 500);
+      _clusterGrid = Math.max(1, api.getIntProperty("httpserver.overlay.clustergrid", 32));
+      _cache = new OverlayCache(api, this::createPoint, 
+           api.getIntProperty("httpserver.overlay.cache.maxage", 5) * 1000);
    }
 }
@@ -23,10 +23,13 @@ public interface JsonPoints
         public AuthInfo       authorization;
         public boolean        sarmode; 
         public boolean        overload;
+        public boolean        full;      /* Not a delta: all points in view are included */
+        public long           seq;       /* Points are included up to this change sequence number */
         public List<JsPoint>  points;
         public List<String>   delete;
         public List<JsLine>   lines;
         public List<JsTPoint> pcloud;
+        public List<JsCluster> clusters;  /* If overload: Clusters of points not sent */
       
         public JsOverlay(String v) {
             view = v;
@@ -67,6 +70,7 @@ public interface JsonPoints
          // FIXME: Style or colours. Do colour selection on client? 
         
         public List<JsTPoint> linestring;  
+        public boolean append;   /* Newer points to be added to the trail the client has */
         public JsTrail(String[] s) 
             { style=s; linestring = new LinkedList<JsTPoint>(); }
     }
@@ -89,6 +93,13 @@ public interface JsonPoints
         }
     }
     
+    /* Number of points in a part of the map. pos is the mean position */
+    class JsCluster {
+        public double[] pos = new double[2];
+        public int count;
+    }
+    
+    
     class JsLine {
         public String ident;
         public double[] from, to;
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2017 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2017-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -19,6 +19,8 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.IOException;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
@@ -39,8 +41,9 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
    {
        private boolean   _subscribe; 
        private long      _lastSent = 0;
-       private boolean   _pending = false; 
+       private final AtomicBoolean _pending = new AtomicBoolean(false);   /* Set by signal, cleared by updateClients */
        private String    _baseLayer = "none";
+       private final Object _genLock = new Object(); /* Overlay is generated by one thread at a time */
        
        protected LatLng  _uleft;     /* Area of interest: upper left */
        protected LatLng  _lright;    /* Area of interest: lower right */
@@ -48,6 +51,8 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
        protected String  _tag;
        protected boolean _keep = false;
        protected long    _scale = 0;
+       protected boolean _delta = false;   /* Client can append to trails */
+       protected boolean _binary = false;  /* Send overlays in compact binary encoding */
               
        public Client(Session conn) 
           { super(conn); }
@@ -58,20 +63,69 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
         * and client wants to be updated, but not more often than once per 5 seconds. 
         */
        public boolean isInside(TrackerPoint st, boolean postpone ) {
-          _pending = _pending || (_subscribe && st != null && st.isInside(_uleft, _lright));
-          if (!postpone && _pending) {
-             _pending = false; 
-             return true; 
-          }
-          return false; 
+          if (_subscribe && st != null && st.isInside(_uleft, _lright))
+             _pending.set(true);
+          return !postpone && _pending.getAndSet(false); 
        }
        
        
+       /** 
+        * Mark the client as pending, so that it gets a new overlay in the next 
+        * update cycle. E.g. when not all points could be sent in this one.
+        */
+       protected void setPending()
+          { _pending.set(true); }
+       
+       
        /** Returns the overlay. XML format. */
        public abstract String getOverlayData(boolean metaonly);
+       
+       
+       /** Returns the overlay in compact binary encoding. Null if not supported. */
+       public byte[] getOverlayBinary() 
+          { return null; }
+       
+       
+       /** Return true if compact binary encoding is supported. */
+       public boolean hasBinary()
+          { return false; }
+          
+          
+       /**
+        * Generate overlay and send it. If async, beginAsync must be called 
+        * first, if not, this waits for a send in progress. The client is 
+        * reserved before the overlay is generated, so overlays are sent in the 
+        * order they are generated. It is released when the send is complete. 
+        */
+       protected void sendOverlay(boolean async) throws IOException {
+          if (!async)
+             reserve();
+          if (_binary) {
+             byte[] data = null;
+             try {
+                synchronized(_genLock) { data = getOverlayBinary(); }
+             }
+             finally {
+                sendBinaryAsync(data);
+             }
+          }
+          else {
+             String txt = null;
+             try {
+                synchronized(_genLock) { txt = getOverlayData(false); }
+             }
+             finally {
+                sendTextAsync(txt);
+             }
+          }
+       }
 
        
-       public void subscribe() {}
+       /**
+        * Called when client subscribes. 
+        * @param changed true if the view, filter, scale or tag is changed.
+        */
+       public void subscribe(boolean changed) {}
       
        
        
@@ -96,6 +150,10 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
                  if (x3 > 90.0) x3 = 90.0; if (x3 < -90.0) x3 = -90.0;
                  if (x4 > 90.0) x4 = 90.0; if (x4 < -90.0) x4 = -90.0;
                  
+                 LatLng ul = _uleft, lr = _lright; 
+                 String filt = _filter, tag = _tag; 
+                 long scale = _scale;
+                 
                  _uleft  = new LatLng((double) x4, (double) x1); 
                  _lright = new LatLng((double) x2, (double) x3);
                  _scale  = Long.parseLong( parms[6] );
@@ -108,10 +166,18 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
                     else if (parms.length > 8)
                         _tag = parms[8].trim();
                  }
+                 boolean changed = ul == null || lr == null 
+                    || ul.getLat() != _uleft.getLat() || ul.getLng() != _uleft.getLng()
+                    || lr.getLat() != _lright.getLat() || lr.getLng() != _lright.getLng()
+                    || scale != _scale || !Objects.equals(filt, _filter) || !Objects.equals(tag, _tag);
+                    
                  _subscribe = true;
-                 subscribe(); 
+                 _areas.put(this, _uleft, _lright);
                  
-                 try { sendText(getOverlayData(false) ); }
+                 synchronized(_genLock) { 
+                    subscribe(changed); 
+                 }
+                 try { sendOverlay(false); }
                  catch (IOException e) 
                   {  _api.log().error("MapUpdater", "Couldn't sendtext to client "+_uid+": "+e); }
               }
@@ -121,6 +187,14 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
            else if (parms[0].equals("BASELAYER")) {
                   _baseLayer = parms[1];
            }
+           /* DELTA,true: Client can append trail points to the trails it has */
+           else if (parms[0].equals("DELTA")) {
+                  _delta = (parms.length > 1 && "true".equals(parms[1].trim()));
+           }
+           /* ENCODING,binary|json: Encoding of overlays. Default is json */
+           else if (parms[0].equals("ENCODING")) {
+                  _binary = (parms.length > 1 && "binary".equals(parms[1].trim()) && hasBinary());
+           }
            else if (!parms[0].equals("****"))
               _api.log().warn("MapUpdater", "Unknown command from client. uid="+_uid);
        }   
@@ -128,20 +202,37 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
      
      
    private LStatLogger _stats;
-   private MapUpdater _link;  
+   private Notifier _link;  
+   
+   /* Map views of clients. A point may also be shown if it is outside 
+    * the view and its trail is inside, see TrackerPoint.isInside. 
+    * Views are therefore extended by their size in each direction. */
+   private AreaIndex<Client> _areas = new AreaIndex<Client>(2, 1.0);
    private Timer hb = new Timer();
    protected long    _updates = 0;
    
+   /* Overlays are generated by a pool of threads */
+   private ExecutorService _pool;
+   private static final Metrics.Histogram _cycleTime = Metrics.histogram("map.cycle");
+   private static final Metrics.Counter _coalesced = Metrics.counter("map.coalesced");
+   
           
           
     public MapUpdater(ServerAPI api, boolean trust) { 
         super(api, trust); 
+        int nthreads = api.getIntProperty("httpserver.overlay.threads", 
+                Runtime.getRuntime().availableProcessors());
+        AtomicInteger tid = new AtomicInteger();
+        _pool = Executors.newFixedThreadPool(Math.max(1, nthreads), r -> {
+            Thread t = new Thread(r, "MapUpdater-"+tid.incrementAndGet()); 
+            t.setDaemon(true); 
+            return t; 
+        });
       
         /* Periodic task to send updates to clients */
         hb.schedule( new TimerTask() 
             { public void run() {       
-                postText( x -> ((Client)x).getOverlayData(false), 
-                          x -> ((Client)x).isInside(null, false) ); 
+                updateClients();
             } 
         } , 10000, 5000); 
         
@@ -152,8 +243,15 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
                   for (String x : _clients.keySet())
                      _stats.count( ((Client)_clients.get(x))._baseLayer); 
                }
+               /* Clients may be removed without closeSes being called */
+               Set<Client> cl = new HashSet<Client>();
+               for (WsNotifier.Client c : _clients.values())
+                  cl.add((Client) c);
+               _areas.retainAll(cl);
             } 
         } , 30000, 60000); 
+        
+        onCloseSes( c -> _areas.remove((Client) c) );
     }  
     
           
@@ -197,21 +295,62 @@ public abstract class MapUpdater extends WsNotifier implements Notifier
    }
 
    
+   /**
+    * Generate and send overlays to clients with pending updates. Overlays 
+    * are generated by the thread pool and sent asynchronously. If the previous 
+    * overlay to a client is still being generated or sent, the client is 
+    * skipped and kept pending, so the updates are coalesced into the next. 
+    */
+   protected void updateClients() {
+      long t0 = System.nanoTime();
+      List<Client> todo = new ArrayList<Client>();
+      for (WsNotifier.Client x : _clients.values()) {
+         Client c = (Client) x;
+         if (!c._pending.get())
+            continue; 
+         if (!c.beginAsync()) {
+            _coalesced.inc(); 
+            continue;
+         }
+         if (c.isInside(null, false))
+            todo.add(c);
+         else
+            c.sendTextAsync(null);
+      }
+      
+      AtomicInteger remaining = new AtomicInteger(todo.size());
+      for (Client c : todo) 
+         _pool.execute( () -> {
+            try {
+               c.sendOverlay(true);
+            }
+            catch (IOException e) {}
+            finally {
+               if (remaining.decrementAndGet() == 0)
+                  _cycleTime.since(t0);
+            }
+         });
+   }
+   
+   
+   
    /** Signal of change from a tracker point. */
    public void signal(TrackerPoint st) {
       /* 
-       * postText will not generate and send text here. 
-       * This is postponed to a periodic task to avoid 
-       * deadlock problems and to avoid sending too often. 
+       * Only mark the clients as having pending updates. Text is 
+       * generated and sent by a periodic task to avoid deadlock 
+       * problems and to avoid sending too often. Only clients with 
+       * a map view near the point are tested. 
        */
-      postText( "", x -> ((Client)x).isInside(st, true) );
+      if (st != null)
+         _areas.forEach(st.getPosition(), x -> x.isInside(st, true) );
       if (_link != null) 
          _link.signal(st);
    }
    
 
    /** Link to another instance of this class to receive signal. */
-   public void link(MapUpdater n) {
+   public void link(Notifier n) {
       _link = n; 
    }
    
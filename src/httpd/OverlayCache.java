@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd.http;
+import no.polaric.aprsd.*;
+import no.polaric.aprsd.filter.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+
+/**
+ * Cache of filtered map points, shared by the clients of a map updater.
+ * The map is divided into tiles. The tile size depends on the size of
+ * the map view (a view is about 4-8 tiles wide). For each tile, filter,
+ * scale and login status, the points in the tile are searched, the filter
+ * is applied and JSON points are created once. Clients with the same filter
+ * and scale then share the work.
+ *
+ * A tile is recomputed when a point in it has changed (invalidate) or when
+ * it is older than the given max age.
+ */
+public class OverlayCache implements JsonPoints
+{
+
+    /**
+     * Create a JSON point for a tracker point.
+     * uleft and lright is the area where trails are shown.
+     */
+    public interface PointFactory {
+        JsPoint create(TrackerPoint s, Action action, boolean login, LatLng uleft, LatLng lright);
+    }
+
+
+    /**
+     * Point in a tile: the tracker point, the result of the filter and
+     * the JSON point. If hidden, the point is not to be shown. js is null
+     * if the point is not visible. seq is the change sequence number of the
+     * point when the entry was created (the JSON point is at least this new).
+     */
+    public static class Entry {
+        public final TrackerPoint point;
+        public final long seq;
+        public final Action action;
+        public final boolean hidden;
+        public final JsPoint js;
+
+        public Entry(TrackerPoint p, long s, Action a, boolean h, JsPoint j)
+            { point = p; seq = s; action = a; hidden = h; js = j; }
+    }
+
+
+    private record Key(RuleSet filter, long scale, boolean login, boolean allowed, long tile) {}
+
+
+    /* Tile. Entries are computed on first use */
+    private class Tile {
+        final long created = System.nanoTime();
+        private List<Entry> _entries;
+
+        synchronized List<Entry> get(Key k) {
+            if (_entries == null) {
+                _misses.inc();
+                _entries = _compute(k);
+            }
+            else
+                _hits.inc();
+            return _entries;
+        }
+    }
+
+
+
+    public static final int MAXLEVEL = 20;
+    
+    /* 
+     * Trails are shown within the client's view and 0.7 view widths around it. 
+     * A view is up to 8 tiles wide, so trails are shown within 14 tiles of the 
+     * tile with the point. 
+     */
+    private static final int TRAIL_TILES = 14;
+
+    private final ServerAPI _api;
+    private final PointFactory _factory;
+    private final long _maxage;
+    private final ConcurrentHashMap<Key, Tile> _tiles = new ConcurrentHashMap<Key, Tile>();
+    private final ConcurrentHashMap<Long, Long> _changed = new ConcurrentHashMap<Long, Long>();  /* Time of last change in tile */
+    private volatile int _levels = 0;   /* Bitmask of tile levels in use */
+
+    private static final Metrics.Counter _hits = Metrics.counter("map.tilecache.hit");
+    private static final Metrics.Counter _misses = Metrics.counter("map.tilecache.miss");
+
+
+
+    /**
+     * @param maxage Max age of a tile (milliseconds).
+     */
+    public OverlayCache(ServerAPI api, PointFactory f, long maxage)
+    {
+        _api = api;
+        _factory = f;
+        _maxage = maxage * 1000000;
+    }
+
+
+
+    /* Tile size at level */
+    private static double size(int level)
+        { return 360.0 / (1 << level); }
+
+    private static int tx(int level, double lng)
+        { return Math.floorMod((int) Math.floor((lng + 180) / size(level)), 1 << level); }
+
+    private static int ty(int level, double lat)
+        { return Math.max(0, Math.min((1 << level) / 2, (int) Math.floor((lat + 90) / size(level)))); }
+
+    private static long id(int level, int tx, int ty)
+        { return ((long) level << 56) | ((long) tx << 28) | ty; }
+
+
+    /* Tile level for a map view. At least 4 tiles across the view */
+    private static int level(double width) {
+        if (width <= 0)
+            return MAXLEVEL;
+        int l = (int) Math.ceil(Math.log(4 * 360.0 / width) / Math.log(2));
+        return Math.max(1, Math.min(MAXLEVEL, l));
+    }
+
+
+    /* Longitude in the range -180 to 180 */
+    private static double lng(double x)
+        { return (x > 180 ? x - 360 : (x < -180 ? x + 360 : x)); }
+
+
+
+    /**
+     * Call f for each entry in the tiles that overlap the area. The caller is
+     * expected to check if the point is inside the area.
+     */
+    public void forEach(RuleSet filter, long scale, boolean login, boolean allowed,
+                        LatLng uleft, LatLng lright, Consumer<Entry> f)
+    {
+        double x1 = uleft.getLng(), x2 = lright.getLng();
+        if (x2 < x1)
+            x2 += 360;
+        int level = level(x2 - x1);
+        _levels |= (1 << level);
+        long now = System.nanoTime();
+
+        int n = 1 << level;
+        int c1 = (int) Math.floor((x1 + 180) / size(level));
+        int c2 = (int) Math.floor((x2 + 180) / size(level));
+        if (c2 - c1 >= n)
+            c2 = c1 + n - 1;
+        int r1 = ty(level, lright.getLat()), r2 = ty(level, uleft.getLat());
+
+        for (int c = c1; c <= c2; c++)
+            for (int r = r1; r <= r2; r++)
+                _forEach(filter, scale, login, allowed, level, Math.floorMod(c, n), r, now, f);
+    }
+
+
+
+    /**
+     * Call f for each entry in a tile. Tiles at a level are 360/2^level degrees
+     * wide and high. Columns (tx) are counted from 180W and rows (ty) from 90S.
+     */
+    public void forEach(RuleSet filter, long scale, boolean login, boolean allowed,
+                        int level, int tx, int ty, Consumer<Entry> f)
+    {
+        if (level < 0 || level > MAXLEVEL || tx < 0 || tx >= (1 << level) || ty < 0 || ty > (1 << level) / 2)
+            return;
+        _levels |= (1 << level);
+        _forEach(filter, scale, login, allowed, level, tx, ty, System.nanoTime(), f);
+    }
+
+
+
+    private void _forEach(RuleSet filter, long scale, boolean login, boolean allowed,
+                          int level, int tx, int ty, long now, Consumer<Entry> f)
+    {
+        long id = id(level, tx, ty);
+        Long changed = _changed.get(id);
+        Key k = new Key(filter, scale, login, allowed, id);
+        Tile t = _tiles.compute(k, (kk, old) ->
+            (old != null && now - old.created < _maxage && (changed == null || old.created > changed))
+                ? old : new Tile());
+        for (Entry e : t.get(k)) {
+            /* Skip points that have moved to another tile */
+            LatLng pos = e.point.getPosition();
+            if (pos != null && tx(level, pos.getLng()) == tx && ty(level, pos.getLat()) == ty)
+                f.accept(e);
+        }
+    }
+
+
+
+    /* Search the points in a tile, apply the filter and create JSON points */
+    private List<Entry> _compute(Key k)
+    {
+        int level = (int) (k.tile() >>> 56);
+        int tx = (int) (k.tile() >>> 28) & 0xfffffff;
+        int ty = (int) k.tile() & 0xfffffff;
+        double sz = size(level);
+        double x1 = -180 + tx * sz, y1 = -90 + ty * sz;
+        double x2 = x1 + sz, y2 = Math.min(90, y1 + sz);
+
+        /* Area where trails are shown, see TRAIL_TILES */
+        LatLng tul, tlr;
+        if ((2*TRAIL_TILES + 1) * sz >= 360) {
+            tul = new LatLng(90, -180);
+            tlr = new LatLng(-90, 180);
+        }
+        else {
+            tul = new LatLng(Math.min(90, y2 + TRAIL_TILES*sz), lng(x1 - TRAIL_TILES*sz));
+            tlr = new LatLng(Math.max(-90, y1 - TRAIL_TILES*sz), lng(x2 + TRAIL_TILES*sz));
+        }
+
+        List<Entry> res = new ArrayList<Entry>();
+        if (_api.getDB() == null)
+            return res;
+            
+        /* 
+         * Points that the filter hides completely and points from restricted sources 
+         * that are not allowed are skipped by the search. Entries are not hidden. 
+         */
+        _api.getDB().search(new LatLng(y2, x1), new LatLng(y1, x2), k.filter(), k.scale(), k.allowed(), s -> {
+            LatLng pos = s.getPosition();
+            /* Points on the edge are found in two tiles */
+            if (pos == null || tx(level, pos.getLng()) != tx || ty(level, pos.getLat()) != ty)
+                return true;
+
+            long seq = s.getSeq();
+            Action action = k.filter().apply(s, k.scale());
+            JsPoint js = (!s.visible() ? null : _factory.create(s, action, k.login(), tul, tlr));
+            res.add(new Entry(s, seq, action, false, js));
+            return true;
+        });
+        return res;
+    }
+
+
+
+    /**
+     * A point has changed. Tiles containing the position are recomputed
+     * next time they are used.
+     */
+    public void invalidate(LatLng pos)
+    {
+        if (pos == null)
+            return;
+        int levels = _levels;
+        long now = System.nanoTime();
+        for (int l = 0; l <= MAXLEVEL; l++)
+            if ((levels & (1 << l)) != 0)
+                _changed.put(id(l, tx(l, pos.getLng()), ty(l, pos.getLat())), now);
+    }
+
+
+
+    /**
+     * Remove tiles that are too old. Changes older than that are not
+     * needed anymore.
+     */
+    public void sweep()
+    {
+        long now = System.nanoTime();
+        _tiles.values().removeIf(t -> now - t.created >= _maxage);
+        _changed.values().removeIf(t -> now - t >= _maxage);
+    }
+
+
+    /** Return the number of cached tiles. */
+    public int size()
+        { return _tiles.size(); }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd.http;
+import no.polaric.aprsd.*;
+import java.io.*;
+import java.util.*;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Compact binary encoding of map overlays, as an alternative to JSON. Used
+ * for clients on slow links. There is one encoder for each client, since
+ * strings that repeat (icons, styles, paths, etc.) are sent once and then
+ * referred to by number (str below). Other strings (idents, titles, etc.)
+ * are sent as literals (lit below). The client must decode the frames in order.
+ *
+ * Encoding:
+ *  - Integers are varints (7 bits per byte, least significant first). Signed
+ *    integers are zigzag encoded.
+ *  - str: 0 = null, 1 = literal, 2 = literal to be added to the table,
+ *    n >= 3 = table entry n-3. lit: 0 = null, 1 = literal.
+ *    A literal is a length (bytes) and UTF-8.
+ *  - Coordinates are degrees * 100000 (signed). Times are seconds since epoch.
+ *  - Trail points are newest first. Position and time of the first point are
+ *    absolute, the rest are differences from the previous point.
+ *
+ * Frame:
+ *    version(1), flags (1=overload, 2=full, 4=sarmode, 8=authorization),
+ *    seq, view(str), [authorization (lit, JSON)],
+ *    npoints, points, ndelete, ident(lit)..., nlines, lines, npcloud, trail points,
+ *    nclusters, clusters (lng, lat, count)
+ *
+ * Point:
+ *    flags (1=redraw, 2=own, 4=aprs, 8=telemetry, 16=sarAuth, 32=label, 64=trail),
+ *    ident(lit), type(str), lng, lat, title(lit), icon(str), href(lit),
+ *    [label: id(lit), style(str), hidden(1)],
+ *    [trail: nstyle, style(str)..., append(1), npoints, trail points]
+ *
+ * Trail point: lng, lat, time, path(str)
+ * Line: ident(lit), from lng, from lat, to lng, to lat, type(str)
+ */
+public class OverlayEncoder implements JsonPoints
+{
+    public static final int VERSION = 1;
+    private static final int MAXTABLE = 4096;
+
+    private final Map<String, Integer> _table = new HashMap<String, Integer>();
+    private String _auth;
+
+
+
+    private static class Out extends ByteArrayOutputStream {
+        Out(int size)
+            { super(size); }
+
+        void varint(long x) {
+            while ((x & ~0x7fL) != 0) {
+                write((int) ((x & 0x7f) | 0x80));
+                x >>>= 7;
+            }
+            write((int) x);
+        }
+
+        void svarint(long x)
+            { varint((x << 1) ^ (x >> 63)); }
+
+        void bool(boolean x)
+            { write(x ? 1 : 0); }
+
+        void literal(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            write(b, 0, b.length);
+        }
+    }
+
+
+
+    private static long coord(double x)
+        { return Math.round(x * 100000); }
+
+    private static long time(Date t)
+        { return (t == null ? 0 : t.getTime() / 1000); }
+
+
+
+    private void lit(Out out, String s) {
+        out.varint(s == null ? 0 : 1);
+        if (s != null)
+            out.literal(s);
+    }
+
+
+    private void str(Out out, String s) {
+        if (s == null) {
+            out.varint(0);
+            return;
+        }
+        Integer i = _table.get(s);
+        if (i != null)
+            out.varint(i + 3);
+        else if (_table.size() < MAXTABLE) {
+            _table.put(s, _table.size());
+            out.varint(2);
+            out.literal(s);
+        }
+        else {
+            out.varint(1);
+            out.literal(s);
+        }
+    }
+
+
+
+    private void trailPoints(Out out, List<JsTPoint> pts) {
+        out.varint(pts.size());
+        long x = 0, y = 0, t = 0;
+        for (JsTPoint p : pts) {
+            long px = coord(p.pos[0]), py = coord(p.pos[1]), pt = time(p.time);
+            out.svarint(px - x);
+            out.svarint(py - y);
+            out.svarint(pt - t);
+            str(out, p.path);
+            x = px; y = py; t = pt;
+        }
+    }
+
+
+
+    private void point(Out out, JsPoint p) {
+        int flags = (p.redraw ? 1 : 0) | (p.own ? 2 : 0) | (p.aprs ? 4 : 0) | (p.telemetry ? 8 : 0)
+                  | (p.sarAuth ? 16 : 0) | (p.label != null ? 32 : 0) | (p.trail != null ? 64 : 0);
+        out.varint(flags);
+        lit(out, p.ident);
+        str(out, p.type);
+        out.svarint(p.pos == null ? 0 : coord(p.pos[0]));
+        out.svarint(p.pos == null ? 0 : coord(p.pos[1]));
+        lit(out, p.title);
+        str(out, p.icon);
+        lit(out, p.href);
+        if (p.label != null) {
+            lit(out, p.label.id);
+            str(out, p.label.style);
+            out.bool(p.label.hidden);
+        }
+        if (p.trail != null) {
+            String[] st = (p.trail.style == null ? new String[0] : p.trail.style);
+            out.varint(st.length);
+            for (String s : st)
+                str(out, s);
+            out.bool(p.trail.append);
+            trailPoints(out, p.trail.linestring);
+        }
+    }
+
+
+
+    /**
+     * Encode overlay. Frames must be sent to the client in the order they are
+     * encoded.
+     */
+    public synchronized byte[] encode(JsOverlay ov)
+    {
+        Out out = new Out(256 + (ov.points == null ? 0 : ov.points.size() * 48));
+        String auth = (ov.authorization == null ? null : ServerBase.serializeJson(ov.authorization));
+        boolean sendAuth = !Objects.equals(auth, _auth);
+        _auth = auth;
+
+        out.write(VERSION);
+        out.write((ov.overload ? 1 : 0) | (ov.full ? 2 : 0) | (ov.sarmode ? 4 : 0) | (sendAuth ? 8 : 0));
+        out.varint(ov.seq);
+        str(out, ov.view);
+        if (sendAuth)
+            lit(out, auth);
+
+        out.varint(ov.points == null ? 0 : ov.points.size());
+        if (ov.points != null)
+            for (JsPoint p : ov.points)
+                point(out, p);
+
+        out.varint(ov.delete == null ? 0 : ov.delete.size());
+        if (ov.delete != null)
+            for (String d : ov.delete)
+                lit(out, d);
+
+        out.varint(ov.lines == null ? 0 : ov.lines.size());
+        if (ov.lines != null)
+            for (JsLine l : ov.lines) {
+                lit(out, l.ident);
+                out.svarint(coord(l.from[0])); out.svarint(coord(l.from[1]));
+                out.svarint(coord(l.to[0]));   out.svarint(coord(l.to[1]));
+                str(out, l.type);
+            }
+
+        trailPoints(out, ov.pcloud == null ? List.of() : ov.pcloud);
+
+        out.varint(ov.clusters == null ? 0 : ov.clusters.size());
+        if (ov.clusters != null)
+            for (JsCluster c : ov.clusters) {
+                out.svarint(coord(c.pos[0])); out.svarint(coord(c.pos[1]));
+                out.varint(c.count);
+            }
+        return out.toByteArray();
+    }
+}
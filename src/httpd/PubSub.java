@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2017-2023 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2017-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -27,6 +27,12 @@ import java.util.function.*;
 
 /**
  * Generic publish/subscribe service using websocket. 
+ *
+ * Rooms are kept in a concurrent map. Each room has the set of its subscribers
+ * and each client the set of rooms it is subscribed to, so a message is delivered
+ * to the subscribers only, and a client leaves its rooms when it is closed. 
+ * Rooms with a registered prefix (see createRooms) are created when the first 
+ * client subscribes and removed when the last one leaves. 
  */
 @WebSocket(maxIdleTime=1200000)
 public class PubSub extends WsNotifier implements ServerAPI.PubSub
@@ -34,6 +40,9 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
 
     public class Client extends WsNotifier.Client
     {   
+        /* Rooms this client is subscribed to */
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        
         public Client(Session conn) { 
             super(conn); 
         }
@@ -78,7 +87,11 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
 
 
    
-    private Map<String, Room> _rooms = new HashMap<String,Room>(); 
+    private final Map<String, Room> _rooms = new ConcurrentHashMap<String,Room>(); 
+    private final Map<String, Room> _prefixes = new ConcurrentHashMap<String,Room>();  /* Templates for rooms created on demand */
+    
+    private static final Metrics.Counter _posted = Metrics.counter("pubsub.posted");
+    private static final Metrics.Counter _delivered = Metrics.counter("pubsub.delivered");
     
     
     
@@ -87,12 +100,18 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
      */
     public static class Room {
         public Class msgClass;
-        public Set<String> cset = new HashSet<String>();
+        public Set<String> cset = ConcurrentHashMap.newKeySet();
         public boolean login=false, sar=false, admin=false; 
           // true means that authorization is required 
           
         public boolean allowPost=false; 
           // false means that only admin can post. True means that authorized users can post
+        
+        boolean temp=false;
+          // true means that the room is removed when the last client leaves
+          
+        boolean coalesce=false;
+          // true means that a queued message may be replaced by a newer one (each message is a full update)
           
         public Room(Class cl)
             { msgClass = cl; }
@@ -166,7 +185,6 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
      */
     @OnWebSocketClose
     public void onClose(Session conn, int statusCode, String reason) {
-       String user = _getUid(conn);
        closeSes(conn);
     }
    
@@ -174,49 +192,88 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
      * subscribe a client to a room. 
      */
     protected void subscribe(Client c, String rid) {
-        Room room = _rooms.get(rid);
-        if (room == null) {
+        boolean[] found = {true}, added = {false};
+        _rooms.compute(rid, (k, room) -> {
+            if (room == null) {
+                Room t = _prefixes.get(_prefix(rid));
+                if (t == null) {
+                    found[0] = false;
+                    return null;
+                }
+                room = new Room(t.login, t.sar, t.admin, t.allowPost, t.msgClass);
+                room.temp = true;
+                room.coalesce = t.coalesce;
+            }
+            added[0] = room.addClient(c);
+            return (room.temp && room.nClients() == 0 ? null : room);
+        });
+        if (!found[0])
             _api.log().warn("PubSub", "Room not found: "+rid);
-            return;
-        }
-        if (!room.addClient(c))
+        else if (!added[0])
             _api.log().warn("PubSub", "Client "+c.getUid()+" denied access to room: "+rid);
+        else
+            c.rooms.add(rid);
     }
     
     
+    /* Prefix of a room name: up to and including the first colon */
+    private static String _prefix(String rid) {
+        int i = rid.indexOf(':');
+        return (i < 0 ? "" : rid.substring(0, i+1));
+    }
+
+    
+    
     /**
      * unsubscribe a client from a room. 
      */
     protected void unsubscribe(Client c, String rid) {
-        Room room = _rooms.get(rid);
-        if (room == null)
-            return;
-        room.removeClient(c);
+        c.rooms.remove(rid);
+        _rooms.computeIfPresent(rid, (k, room) -> {
+            room.removeClient(c);
+            return (room.temp && room.nClients() == 0 ? null : room);
+        });
     }
     
     
     
     /** Create a room */
     public void createRoom(String name, Class cl) { 
-        if (!_rooms.containsKey(name))
-            _rooms.put(name, new Room(cl)); 
+        _rooms.putIfAbsent(name, new Room(cl)); 
     }
     
     
     
     /** Create a room with restricted access */
     public void createRoom(String name, boolean lg, boolean sar, boolean adm, boolean post, Class cl) { 
-        if (!_rooms.containsKey(name))
-            _rooms.put(name, new Room(lg, sar, adm, post, cl)); 
+        _rooms.putIfAbsent(name, new Room(lg, sar, adm, post, cl)); 
     }
     
     
     
     /** Create a room for a given userid */
     public void createUserRoom(String name, String userid, Class cl) { 
-        if (!_rooms.containsKey(name))
-            _rooms.put(name, new UserRoom(userid, cl)); 
+        _rooms.putIfAbsent(name, new UserRoom(userid, cl)); 
+    }
+    
+    
+    
+    /** 
+     * Rooms with names starting with prefix (ending with a colon, e.g. "telemetry:") 
+     * are created when a client subscribes and removed when the last client leaves. 
+     * Messages to such rooms without subscribers are ignored. 
+     * @param coalesce true if each message is a full update, so that a message 
+     *   queued for a slow client may be replaced by a newer one. 
+     */
+    public void createRooms(String prefix, Class cl, boolean coalesce) {
+        Room t = new Room(cl);
+        t.coalesce = coalesce;
+        _prefixes.put(prefix, t);
     }
+    
+    
+    public void createRooms(String prefix, Class cl)
+        { createRooms(prefix, cl, false); }
 
     
     
@@ -226,6 +283,21 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
     
     
     
+    /** Return the number of rooms. */
+    public int nRooms()
+        { return _rooms.size(); }
+        
+        
+    /** Return the number of subscriptions (clients in rooms). */
+    public int nSubscriptions() {
+        int n = 0;
+        for (Room r : _rooms.values())
+            n += r.nClients();
+        return n;
+    }
+    
+    
+    
     /** Check if a room exists */
     public boolean hasRoom(String name) 
         { return _rooms.containsKey(name); }
@@ -236,23 +308,31 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
       * Post a message to members of a room. If uname is given, 
       * the message will be posted only to the named member
       */
-    private void _put(Room rm, String msg, String uname) {
+    private void _put(String rid, Room rm, String msg, String uname) {
         if (rm == null || rm.nClients() == 0) 
             return;
         _api.log().debug("PubSub", "Post message: "+rm+", "+uname+", "+msg);
-        postText(msg, 
-           c-> (rm != null && rm.hasClient((PubSub.Client) c) && 
-                    (uname==null || uname.equals(((PubSub.Client) c).getUsername()))
-               )
-        );
+        /* Only messages that are full updates may be coalesced */
+        String key = (rm.coalesce ? rid : null);
+        _posted.inc();
+        
+        /* Deliver to the subscribers of the room. The same text is queued for each */
+        for (String uid : rm.cset) {
+            WsNotifier.Client c = _clients.get(uid);
+            if (c != null && (uname==null || uname.equals(c.getUsername()))) {
+                c.post(key, msg);
+                _delivered.inc();
+            }
+        }
     }
     
     
     
     /** Post a message to a room (text is prefixed with the room name) */
     public void putText (String rid, String msg, String uname) { 
-        if (hasRoom(rid))
-            _put(_rooms.get(rid), rid+","+msg, uname); 
+        Room rm = _rooms.get(rid);
+        if (rm != null)
+            _put(rid, rm, rid+","+msg, uname); 
     }
     
     
@@ -261,16 +341,28 @@ public class PubSub extends WsNotifier implements ServerAPI.PubSub
     
     
     /** Post a object to a room (JSON encoded) */
-    public void put(String rid, Object obj, String uname) 
-        { putText(rid, toJson(obj), uname); }
+    public void put(String rid, Object obj, String uname) { 
+        /* Serialise once, and only if there is someone to receive it */
+        Room rm = _rooms.get(rid);
+        if (rm != null && rm.nClients() > 0)
+            _put(rid, rm, rid+","+toJson(obj), uname); 
+    }
     
     
     public void put(String rid, Object obj)
         { put(rid, obj, null); }
         
         
-    public PubSub(ServerAPI api, boolean trusted)
-        { super(api, trusted); }  
+    public PubSub(ServerAPI api, boolean trusted) { 
+        super(api, trusted); 
+        
+        /* Leave rooms when the client is closed (also on errors) */
+        onCloseSes( c -> {
+            if (c instanceof Client cc)
+                for (String rid : cc.rooms)
+                    unsubscribe(cc, rid);
+        });
+    }  
    
    
     
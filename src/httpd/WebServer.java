@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2017-23 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2017-26 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -91,6 +91,7 @@ public class WebServer implements ServerAPI.Web
     private long _nRequests = 0; 
     private final PubSub _pubsub;
     private final MapUpdater _jmapupdate;
+    private final ThreadNotifier _poller = new ThreadNotifier(); 
     private ServerAPI _api; 
     private AuthService _auth;
     private ZeroConf _zconf = new ZeroConf();
@@ -106,6 +107,7 @@ public class WebServer implements ServerAPI.Web
        
        _pubsub     = new PubSub(_api, true); 
        _jmapupdate = new JsonMapUpdater(_api, true);
+       _jmapupdate.link(_poller);
        _auth = new AuthService(api); 
             
             
@@ -222,6 +224,16 @@ public class WebServer implements ServerAPI.Web
         
         SysAdminApi saa = new SysAdminApi(_api);
         saa.start();
+        
+        /* Start REST API: Long polling for map updates */
+        MapPollApi mp = new MapPollApi(_api, (JsonMapUpdater) _jmapupdate, _poller);
+        mp.start();
+        corsEnable("/mapdata/*");
+        corsEnable("/xmapdata/*");
+        
+        /* Start REST API: Map overlays per tile */
+        MapTileApi mt = new MapTileApi(_api, (JsonMapUpdater) _jmapupdate);
+        mt.start();
 
         
         ShellScriptApi sa = new ShellScriptApi(_api); 
@@ -276,6 +288,7 @@ public class WebServer implements ServerAPI.Web
         protectUrl("/users/*",      "admin");
         protectUrl("/mypasswd");
         protectUrl("/xitems");  
+        protectUrl("/xmapdata/*");
         protectUrl("/xtrail"); 
         protectUrl("/item/*/xinfo");  
         protectUrl("/item/*/xpos");
@@ -305,6 +318,9 @@ public class WebServer implements ServerAPI.Web
         /* Room for pushing updates to bulletin board */
         _pubsub.createRoom("bullboard", (Class) null); 
         
+        /* Rooms for updates of telemetry, created when subscribed to. Messages are change signals */
+        _pubsub.createRooms("telemetry:", (Class) null, true);
+        
         MailBox.init(_api);
         AuthInfo.init(_api);
         init();
@@ -1,5 +1,5 @@
 /* 
- * Copyright (C) 2017-2024 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ * Copyright (C) 2017-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -20,6 +20,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.function.*;
 import java.net.*;
 import org.eclipse.jetty.websocket.api.annotations.*;
@@ -29,6 +30,7 @@ import org.eclipse.jetty.websocket.api.UpgradeRequest;
 import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.eclipse.jetty.websocket.api.CloseException;
 import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import java.security.Principal;
 import no.polaric.aprsd.*;
 import com.mindprod.base64.Base64;
@@ -56,6 +58,11 @@ public abstract class WsNotifier extends ServerBase
       protected long _nIn, _nOut; 
       protected Date _ctime; 
       private   boolean _mobile;
+      private   boolean _sending = false;   /* Asynchronous send in progress */
+      
+      /* Outbound queue of messages: key (may be null) and text */
+      private final ArrayDeque<String[]> _queue = new ArrayDeque<String[]>();
+      private long _coalesced, _dropped;
       
       
       protected class _CB implements WriteCallback {
@@ -93,14 +100,233 @@ public abstract class WsNotifier extends ServerBase
             return false;
          }
          if (text == null) text="";
+         reserve();
          _nOut++; 
 
-         _conn.getRemote().sendString(text); 
-         return true;
+         long t = System.nanoTime();
+         try {
+            _conn.getRemote().sendString(text); 
+            _sendTime.since(t);
+            _sentBytes.add(text.length());
+            return true;
+         }
+         finally {
+            _endAsync();
+         }
+      }
+      
+      
+      /** Send binary frame. */
+      public boolean sendBinary(byte[] data) throws IOException {
+         if (_conn == null || _conn.getRemote() == null) {
+            _api.log().warn("WsNotifier", "sendBinary. Connection is null");
+            return false;
+         }
+         if (data == null) data = new byte[0];
+         reserve();
+         _nOut++; 
+
+         long t = System.nanoTime();
+         try {
+            _conn.getRemote().sendBytes(java.nio.ByteBuffer.wrap(data)); 
+            _sendTime.since(t);
+            _sentBinary.add(data.length);
+            return true;
+         }
+         finally {
+            _endAsync();
+         }
       }
    
 
    
+      /** 
+       * Wait for a send in progress to complete and reserve the client. Only one 
+       * write can be in progress on a connection. Messages posted meanwhile are 
+       * sent when done. If it returns, sendTextAsync or sendBinaryAsync must be 
+       * called, like after beginAsync. 
+       */
+      public synchronized void reserve() throws IOException {
+         try {
+            while (_sending) {
+               if (!_conn.isOpen())
+                  throw new IOException("Connection closed");
+               wait(1000);
+            }
+         }
+         catch (InterruptedException e) {
+            throw new InterruptedIOException();
+         }
+         _sending = true;
+      }
+      
+      private void _endAsync() {
+         String text;
+         synchronized(this) {
+            text = _nextQueued();
+            if (text == null) {
+               _sending = false;
+               notifyAll();
+               return;
+            }
+         }
+         _sendQueued(text);
+      }
+      
+      
+      /* Remove and return the next message from the queue. Null if empty */
+      private String _nextQueued() {
+         String[] m = _queue.poll();
+         return (m == null ? null : m[1]);
+      }
+      
+      
+      /* Send a message from the queue. _sending is set */
+      private void _sendQueued(String text) {
+         if (_conn == null || _conn.getRemote() == null) {
+            synchronized(this) { _queue.clear(); }
+            _endAsync();
+            return;
+         }
+         _nOut++;
+         try {
+            _conn.getRemote().sendString(text, _asyncCallback(System.nanoTime()));
+            _sentBytes.add(text.length());
+         }
+         catch (Exception e) {
+            _sendFailed.inc();
+            _endAsync();
+         }
+      }
+      
+      
+      /**
+       * Queue a message to be sent asynchronously. If the queue is backing up
+       * (more than half full) and a message with the same key is in the queue, 
+       * it is replaced with this one. A null key means that the message is 
+       * never replaced. If the queue is full, the client is a slow consumer and 
+       * it is disconnected or the oldest message is dropped (see httpserver.ws.slow).
+       */
+      public void post(String key, String text) {
+         if (text == null)
+            return;
+         synchronized(this) {
+            if (key != null && _queue.size() >= _maxQueue / 2)
+               for (String[] m : _queue)
+                  if (key.equals(m[0])) {
+                     m[1] = text;
+                     _coalesced++;
+                     _coalescedCnt.inc();
+                     return;
+                  }
+            if (_queue.size() >= _maxQueue) {
+               _slowCnt.inc();
+               if (_closeSlow) {
+                  _api.log().info("WsNotifier", "Slow consumer. Closing connection: "+_uid);
+                  _queue.clear();
+                  if (_conn != null)
+                     _conn.close(StatusCode.POLICY_VIOLATION, "Slow consumer");
+                  return;
+               }
+               _queue.poll();
+               _dropped++;
+            }
+            _queue.add(new String[] {key, text});
+            if (_sending)
+               return;
+            _sending = true;
+            text = _nextQueued();
+         }
+         _sendQueued(text);
+      }
+      
+      
+      /** Return the number of messages in the outbound queue. */
+      public synchronized int queued()
+         { return _queue.size(); }
+      
+      /** Return the number of messages replaced by newer ones. */
+      public synchronized long coalesced()
+         { return _coalesced; }
+         
+      /** Return the number of messages dropped because the queue was full. */
+      public synchronized long dropped()
+         { return _dropped; }
+      
+      
+      /**
+       * Reserve the client for an asynchronous send. Return false if a send 
+       * is already in progress. If true is returned, sendTextAsync must be called. 
+       */
+      public synchronized boolean beginAsync() {
+         if (_sending)
+            return false;
+         _sending = true;
+         return true;
+      }
+      
+      
+      /**
+       * Send text without waiting for it to complete. To be called after 
+       * beginAsync. If text is null, nothing is sent. 
+       */
+      public void sendTextAsync(String text) {
+         if (text == null || _conn == null || _conn.getRemote() == null) {
+            _endAsync();
+            return;
+         }
+         _nOut++; 
+         try {
+            _conn.getRemote().sendString(text, _asyncCallback(System.nanoTime()));
+            _sentBytes.add(text.length());
+         }
+         catch (Exception e) {
+            _sendFailed.inc();
+            _endAsync();
+         }
+      }
+      
+      
+      /**
+       * Send binary frame without waiting for it to complete. To be called 
+       * after beginAsync. If data is null, nothing is sent. 
+       */
+      public void sendBinaryAsync(byte[] data) {
+         if (data == null || _conn == null || _conn.getRemote() == null) {
+            _endAsync();
+            return;
+         }
+         _nOut++; 
+         try {
+            _conn.getRemote().sendBytes(java.nio.ByteBuffer.wrap(data), _asyncCallback(System.nanoTime()));
+            _sentBinary.add(data.length);
+         }
+         catch (Exception e) {
+            _sendFailed.inc();
+            _endAsync();
+         }
+      }
+      
+      
+      private WriteCallback _asyncCallback(long t) {
+         return new WriteCallback() {
+            public void writeFailed(Throwable x) {
+               _sendFailed.inc();
+               _endAsync();
+            }
+            public void writeSuccess() {
+               _sendTime.since(t);
+               _endAsync();
+            }
+         };
+      }
+      
+      
+      /** Return true if an asynchronous send is in progress. */
+      public synchronized boolean isSending()
+         { return _sending; }
+      
+      
       public  String getUid()
          { return _uid; }
          
@@ -128,6 +354,17 @@ public abstract class WsNotifier extends ServerBase
    
    
    /* Count number of logged in users */
+   private static final Metrics.Histogram _sendTime = Metrics.histogram("ws.send");
+   private static final Metrics.Counter _sentBytes = Metrics.counter("ws.sentchars");
+   private static final Metrics.Counter _sendFailed = Metrics.counter("ws.sendfailed");
+   private static final Metrics.Counter _sentBinary = Metrics.counter("ws.sentbinary");
+   private static final Metrics.Counter _coalescedCnt = Metrics.counter("ws.queue.coalesced");
+   private static final Metrics.Counter _slowCnt = Metrics.counter("ws.queue.full");
+   
+   /* Max size of outbound queue of each client and what to do when it is full */
+   private final int _maxQueue;
+   private final boolean _closeSlow;
+   
    private int _nLoggedIn;
       
    
@@ -160,6 +397,8 @@ public abstract class WsNotifier extends ServerBase
       _trustedOrigin = _api.getProperty("trusted.orgin", ".*");
       _trusted = trusted;
       _clients = new ConcurrentHashMap<String, Client>();
+      _maxQueue = Math.max(2, api.getIntProperty("httpserver.ws.queue", 100));
+      _closeSlow = !"drop".equals(api.getProperty("httpserver.ws.slow", "close"));
    }  
      
      
@@ -416,24 +655,17 @@ public abstract class WsNotifier extends ServerBase
    
    /**
     * Distribute a text to the clients for which the 
-    * predicate evaluates to true. 
+    * predicate evaluates to true. The text is queued for each client 
+    * and sent asynchronously, see Client.post. Messages with the 
+    * same key may be coalesced. 
     */
-   public void postText(Function<Client,String> txt, Predicate<Client> pred) {
+   public void postText(String key, Function<Client,String> txt, Predicate<Client> pred) {
       try {          
          /* Distribute to all clients */
          for(String user : _clients.keySet()) {
             Client client = (Client) _clients.get(user);
-            try {               
-                if (client != null && pred.test(client) && txt != null) 
-                    client.sendText(txt.apply(client));
-               
-            } catch (java.nio.channels.ClosedChannelException e) {   
-                _clients.remove(user); 
-                _api.log().info("WsNotifier", "Unsubscribing closed client channel: "+user);       
-                Client c = _clients.get(user);
-                if (c!= null && c.login())
-                   _nLoggedIn--;
-            }
+            if (client != null && pred.test(client) && txt != null) 
+                client.post(key, txt.apply(client));
          }
       } 
       catch (Exception e) {
@@ -443,6 +675,12 @@ public abstract class WsNotifier extends ServerBase
    } 
    
    
+   public void postText(Function<Client,String> txt, Predicate<Client> pred) {
+        postText(null, txt, pred);
+   }
+   
+   
+   
    
    public void postText(String txt, Predicate<Client> pred) {
         postText(c->txt, pred);
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package no.polaric.aprsd.http;
+import spark.Request;
+import spark.Response;
+import static spark.Spark.get;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import no.polaric.aprsd.*;
+
+
+
+/**
+ * Map updates with HTTP long polling. An alternative to the websocket
+ * (/jmapdata) for clients that cannot use websockets.
+ *
+ * The client gets an overlay (JSON, like on the websocket) and sends the
+ * 'seq' of it with the next request. The request returns when points in
+ * the area have changed after seq, or after a timeout (with no points).
+ * If seq is 0 or missing, all points in the area are returned at once.
+ */
+public class MapPollApi extends ServerBase implements JsonPoints {
+
+    private ServerAPI _api;
+    private JsonMapUpdater _map;
+    private ThreadNotifier _notifier;
+    private long _mintime, _timeout;
+    private Semaphore _slots;   /* Max number of waiting requests. Each blocks a server thread */
+    private static final Metrics.Counter _rejected = Metrics.counter("map.poll.rejected");
+    private static final int RETRY_AFTER = 5;   /* Seconds, when there are too many waiters */
+
+
+    public MapPollApi(ServerAPI api, JsonMapUpdater map, ThreadNotifier notifier) {
+        super(api);
+        _api = api;
+        _map = map;
+        _notifier = notifier;
+        _mintime = api.getIntProperty("httpserver.poll.mintime", 1000);
+        _timeout = api.getIntProperty("httpserver.poll.timeout", 50) * 1000;
+        _slots = new Semaphore(Math.max(1, api.getIntProperty("httpserver.poll.max", 50)));
+    }
+
+
+
+    /**
+     * Return an error status message to client.
+     */
+    public String ERROR(Response resp, int status, String msg)
+      { resp.status(status); return msg; }
+
+
+
+    private static double clamp(double x, double lim)
+        { return Math.max(-lim, Math.min(lim, x)); }
+
+
+
+    /*
+     * Parameters:
+     *    filter, x1, x2, x3, x4, scale, tag - as in SUBSCRIBE on the websocket
+     *    seq - sequence number of the previous overlay
+     *    id  - identifies the client (required). A new request aborts a waiting request with 
+     *          the same id. Clients behind the same proxy have the same IP address, so the id 
+     *          must be unique (e.g. random) for each client. 
+     *
+     * If there are too many waiting requests, the status is 503 (Service unavailable). 
+     */
+    private Object _poll(Request req, Response resp)
+    {
+        double x1, x2, x3, x4;
+        long scale, seq;
+        try {
+            x1 = clamp(Double.parseDouble(req.queryParams("x1")), 180);
+            x2 = clamp(Double.parseDouble(req.queryParams("x2")), 90);
+            x3 = clamp(Double.parseDouble(req.queryParams("x3")), 180);
+            x4 = clamp(Double.parseDouble(req.queryParams("x4")), 90);
+            scale = Long.parseLong(req.queryParams("scale"));
+            String s = req.queryParams("seq");
+            seq = (s == null ? 0 : Long.parseLong(s));
+        }
+        catch (NullPointerException | NumberFormatException e) {
+            return ERROR(resp, 400, "Missing or invalid parameters");
+        }
+        String filter = req.queryParams("filter");
+        String tag = req.queryParams("tag");
+        if (tag != null && tag.isBlank())
+            tag = null;
+        String id = req.queryParams("id");
+        if (id == null || id.isBlank())
+            return ERROR(resp, 400, "Missing client id");
+        long wid = ((long) req.ip().hashCode() << 32) | (id.hashCode() & 0xffffffffL);
+        LatLng uleft = new LatLng(x4, x1), lright = new LatLng(x2, x3);
+
+        AuthInfo auth = getAuthInfo(req);
+        if (auth == null)
+            auth = AuthService.getAuthInfo(req, resp);
+
+        if (seq <= 0)
+            return _map.getOverlay(auth, filter, uleft, lright, scale, tag, 0, null);
+            
+        /* 
+         * Start receiving events before looking for points that have changed since 
+         * last time, so that nothing is lost in between. 
+         */
+        ThreadNotifier.Waiter w = _notifier.subscribe(uleft, lright, wid);
+        try {
+            JsOverlay ov = _map.getOverlay(auth, filter, uleft, lright, scale, tag, seq, null);
+            if (ov.overload || !ov.points.isEmpty() || !ov.delete.isEmpty())
+                return ov;
+            if (!_slots.tryAcquire()) {
+                _rejected.inc();
+                resp.header("Retry-After", "" + RETRY_AFTER);
+                return ERROR(resp, 503, "Too many waiting clients");
+            }
+            
+            /* Wait for changes. Only the points that are signalled need to be checked */
+            List<TrackerPoint> ev;
+            try {
+                ev = w.await(_mintime, _timeout);
+            }
+            finally {
+                _slots.release();
+            }
+            if (ev == null || ev.isEmpty())
+                return ov;
+            ov = _map.getOverlay(auth, filter, uleft, lright, scale, tag, seq, (ev.contains(null) ? null : ev));
+            return ov;
+        }
+        finally {
+            w.close();
+        }
+    }
+
+
+
+    /**
+     * Set up the webservices.
+     */
+    public void start() {
+
+        /******************************************
+         * Long polling for map updates.
+         ******************************************/
+        get("/mapdata/poll", "application/json", (req, resp) -> {
+            return _poll(req, resp);
+        }, ServerBase::toJson );
+
+        get("/xmapdata/poll", "application/json", (req, resp) -> {
+            return _poll(req, resp);
+        }, ServerBase::toJson );
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package no.polaric.aprsd.http;
+import spark.Request;
+import spark.Response;
+import static spark.Spark.get;
+import java.util.*;
+import no.polaric.aprsd.*;
+
+
+
+/**
+ * Map overlays per tile over plain HTTP, for read-only viewers that are not
+ * logged in. Responses can be cached by browsers and reverse proxies: They
+ * have an ETag and a short max-age, and requests with a matching
+ * If-None-Match get 304 (Not modified).
+ *
+ * Tiles at level z are 360/2^z degrees wide and high. Columns (x) are counted
+ * from 180W and rows (y) from 90S. The filter (view profile) must be public.
+ * The scale given to the filter is derived from z (standard scale of web map
+ * zoom level z).
+ */
+public class MapTileApi extends ServerBase implements JsonPoints {
+
+    private ServerAPI _api;
+    private JsonMapUpdater _map;
+    private int _maxage;
+    /* Change numbers start at 0 when the server starts. Tags must differ between runs */
+    private static final String _run = Long.toHexString(System.currentTimeMillis());
+    private static final Metrics.Counter _notModified = Metrics.counter("map.tile.notmodified");
+
+
+    public MapTileApi(ServerAPI api, JsonMapUpdater map) {
+        super(api);
+        _api = api;
+        _map = map;
+        _maxage = api.getIntProperty("httpserver.tile.maxage", 5);
+    }
+
+
+
+    /**
+     * Return an error status message to client.
+     */
+    public String ERROR(Response resp, int status, String msg)
+      { resp.status(status); return msg; }
+
+
+
+    private Object _getTile(Request req, Response resp)
+    {
+        int z, x, y;
+        try {
+            z = Integer.parseInt(req.params("z"));
+            x = Integer.parseInt(req.params("x"));
+            y = Integer.parseInt(req.params("y"));
+        }
+        catch (NumberFormatException e) {
+            return ERROR(resp, 400, "Invalid tile");
+        }
+        if (z < 1 || z > OverlayCache.MAXLEVEL || x < 0 || x >= (1 << z) || y < 0 || y > (1 << z) / 2)
+            return ERROR(resp, 404, "No such tile");
+
+        String filter = req.queryParams("filter");
+        if (filter == null)
+            filter = "";
+        JsOverlay ov = _map.getTile(filter, z, x, y);
+
+        /* The tile is the same if the highest change number and the number of points are the same */
+        String etag = "\"" + _run + "-" + Integer.toHexString(filter.hashCode()) + "-" + z + "-" + x + "-" + y
+                    + "-" + ov.seq + "-" + ov.points.size() + "\"";
+        resp.header("ETag", etag);
+        resp.header("Cache-Control", "public, max-age=" + _maxage);
+        if (etag.equals(req.headers("If-None-Match"))) {
+            _notModified.inc();
+            resp.status(304);
+            return "";
+        }
+        return ov;
+    }
+
+
+
+    /**
+     * Set up the webservices.
+     */
+    public void start() {
+
+        /******************************************
+         * Get map overlay for a tile.
+         ******************************************/
+        get("/mapdata/tile/:z/:x/:y", "application/json", (req, resp) -> {
+            return _getTile(req, resp);
+        }, ServerBase::toJson );
+    }
+}
@@ -53,6 +53,14 @@ public class SysAdminApi extends ServerBase {
     
     
     
+    public static class MetricsInfo
+    {
+        public Map<String, Long> counters;
+        public Map<String, Metrics.Summary> histograms;
+    }
+    
+    
+    
     public static class SysInfo 
     {
         public Date runsince; 
@@ -60,7 +68,11 @@ public class SysAdminApi extends ServerBase {
         public int items;
         public int ownobj;
         public int clients, loggedin;
+        public int rooms, subscriptions;
         public long usedmem;
+        public int indexdrift;
+        public long duphits, dupmisses;
+        public PacketPipeline.Stats ingest;
         public List<String> plugins;
         public List<ChannelInfo> channels;
         public String remotectl;
@@ -166,7 +178,7 @@ public class SysAdminApi extends ServerBase {
     
     
     public static record ClientInfo
-       (Date created, String cid, long in, long out, String userid, boolean mobile)
+       (Date created, String cid, long in, long out, String userid, boolean mobile, String service, int queued, long dropped)
     {}
     
     public static record ServerConfig 
@@ -316,7 +328,17 @@ public class SysAdminApi extends ServerBase {
             res.ownobj = _api.getDB().getOwnObjects().nItems();
             res.clients = _api.getWebserver().nClients();
             res.loggedin = _api.getWebserver().nLoggedin();
+            if (_api.getWebserver().getPubSub() instanceof PubSub ps) {
+                res.rooms = ps.nRooms();
+                res.subscriptions = ps.nSubscriptions();
+            }
             res.usedmem = StationDBBase.usedMemory();
+            if (_api.getDB() instanceof StationDBImp db)
+                res.indexdrift = db.getIndexDrift();
+            res.duphits = AprsChannel._dupCheck.getHits();
+            res.dupmisses = AprsChannel._dupCheck.getMisses();
+            if (AprsChannel._pipeline != null)
+                res.ingest = AprsChannel._pipeline.getStats();
             
             /* Plugins */
             PluginManager.Plugin[] plugins = PluginManager.getPlugins();
@@ -333,6 +355,19 @@ public class SysAdminApi extends ServerBase {
         
         
         
+        /******************************************
+         * Get metrics: counters and latency 
+         * histograms (microseconds)
+         ******************************************/
+        get("/system/adm/metrics", "application/json", (req, resp) -> {
+            MetricsInfo res = new MetricsInfo();
+            res.counters = Metrics.counters();
+            res.histograms = Metrics.histograms();
+            return res;
+        }, ServerBase::toJson );
+        
+        
+        
         /******************************************
          * Get clients
          ******************************************/
@@ -341,7 +376,12 @@ public class SysAdminApi extends ServerBase {
             List<ClientInfo> res = new ArrayList<ClientInfo>();
             
             for ( WsNotifier.Client x : ws.getJsonMapUpdater().clients())
-                res.add(new ClientInfo(x.created(), x.getUid(), x.nIn(), x.nOut(), x.getUsername(), x.isMobile()));
+                res.add(new ClientInfo(x.created(), x.getUid(), x.nIn(), x.nOut(), x.getUsername(), x.isMobile(), 
+                    "map", x.queued(), x.dropped()));
+            if (ws.getPubSub() instanceof PubSub ps)
+                for ( WsNotifier.Client x : ps.clients())
+                    res.add(new ClientInfo(x.created(), x.getUid(), x.nIn(), x.nOut(), x.getUsername(), x.isMobile(), 
+                        "pubsub", x.queued(), x.dropped()));
             
             return res;
         }, ServerBase::toJson );
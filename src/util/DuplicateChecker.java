@@ -1,5 +1,5 @@
- /* 
- * Copyright (C) 2022 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ /*
+ * Copyright (C) 2022-2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
  *
  * This program is free software; you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
@@ -11,34 +11,153 @@
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
  */
- 
- 
- package no.polaric.aprsd; 
+
+
+ package no.polaric.aprsd;
  import net.cinnom.nanocuckoo.NanoCuckooFilter;
 
- 
+
+ /**
+  * Probabilistic set of recently seen values. It uses two generations of
+  * cuckoo filters: New values are added to the current generation. When it is
+  * full (it holds capacity values) or older than the given period, it becomes
+  * the previous generation and a new, empty one is created. A value is found if
+  * it is in either generation.
+  *
+  * Values are remembered for at least capacity insertions or one period.
+  * False positives occur with (approximately) the given probability.
+  * False negatives do not occur for values remembered.
+  */
  public class DuplicateChecker {
-    private NanoCuckooFilter _cfilter1;
-    private NanoCuckooFilter _cfilter2; 
-    private int _capacity;
-    
-    public DuplicateChecker(int capacity) {
-        _capacity = capacity;
-        _cfilter1 = new NanoCuckooFilter.Builder( capacity/2+1 ).build();
-        _cfilter2 = null;
-    }
-    
-    public void add(String val) {
-        if (! _cfilter1.insert(val)) {
-            _cfilter2 = _cfilter1;
-            _cfilter1 = new NanoCuckooFilter.Builder( _capacity/2+1 ).build();
-            _cfilter1.insert(val);
+    private static final int ENTRIES_PER_BUCKET = 4;
+
+    private NanoCuckooFilter _current;
+    private NanoCuckooFilter _previous;
+    private final int _gencap, _fpbits;
+    private final long _period;
+    private long _genstart, _gencount, _prevcount;
+
+
+    /**
+     * Create checker with false positive rate 0.001 and no time limit.
+     * @param capacity Number of values to remember.
+     */
+    public DuplicateChecker(int capacity)
+        { this(capacity, 0.001, 0); }
+
+
+    /**
+     * @param capacity Number of values to remember.
+     * @param fpp False positive probability.
+     * @param period Max age (in milliseconds) of a generation. 0 means no limit.
+     */
+    public DuplicateChecker(int capacity, double fpp, long period) {
+        _gencap = Math.max(1, capacity);
+        _period = period;
+
+        /* A lookup checks 2 buckets in each of 2 filters, each with a
+         * chance of 1/2^bits of a matching fingerprint per entry */
+        int bits = (int) Math.ceil(Math.log(4.0 * ENTRIES_PER_BUCKET / fpp) / Math.log(2));
+        _fpbits = Math.max(4, Math.min(32, bits));
+        _current = newFilter();
+        _genstart = System.currentTimeMillis();
+    }
+
+
+    private NanoCuckooFilter newFilter() {
+        /* Some headroom, since cuckoo inserts may fail at high load */
+        return new NanoCuckooFilter.Builder( _gencap + _gencap/4 + 1 )
+            .withEntriesPerBucket(ENTRIES_PER_BUCKET)
+            .withFingerprintBits(_fpbits)
+            .build();
+    }
+
+
+    private void rotate() {
+        if (_previous != null)
+            _previous.close();
+        _previous = _current;
+        _current = newFilter();
+        _prevcount = _gencount;
+        _gencount = 0;
+    }
+
+
+    /* Rotate generations if current is too old */
+    private void expire(long now) {
+        if (_period <= 0 || now - _genstart < _period)
+            return;
+        if (now - _genstart >= 2 * _period && _previous != null) {
+            /* Both generations are too old */
+            _previous.close();
+            _previous = null;
+        }
+        rotate();
+        _genstart = now;
+    }
+
+
+    private void insert(String val, long key, boolean isKey) {
+        if (_gencount >= _gencap) {
+            rotate();
+            _genstart = System.currentTimeMillis();
+        }
+        if (! (isKey ? _current.insert(key) : _current.insert(val))) {
+            rotate();
+            _genstart = System.currentTimeMillis();
+            if (isKey) _current.insert(key); else _current.insert(val);
         }
+        _gencount++;
+    }
+
+
+
+    public synchronized void add(String val) {
+        expire(System.currentTimeMillis());
+        insert(val, 0, false);
+    }
+
+    public synchronized void add(long key) {
+        expire(System.currentTimeMillis());
+        insert(null, key, true);
+    }
+
+
+    public synchronized boolean contains(String val) {
+        expire(System.currentTimeMillis());
+        return _current.contains(val) ||
+           (_previous != null && _previous.contains(val));
     }
-    
-    public boolean contains(String val) {
-        return (_cfilter1.contains(val) && 
-          (_cfilter2 != null && _cfilter2.contains(val)));
+
+    public synchronized boolean contains(long key) {
+        expire(System.currentTimeMillis());
+        return _current.contains(key) ||
+           (_previous != null && _previous.contains(key));
+    }
+
+
+    /**
+     * Return true if key is seen before. If not, add it.
+     */
+    public synchronized boolean checkAndAdd(long key) {
+        expire(System.currentTimeMillis());
+        if (_current.contains(key) || (_previous != null && _previous.contains(key)))
+            return true;
+        insert(null, key, true);
+        return false;
+    }
+
+
+    /** Return the number of values added to the generations that are remembered. */
+    public synchronized long size() {
+        expire(System.currentTimeMillis());
+        return _gencount + (_previous == null ? 0 : _prevcount);
+    }
+
+
+    /** Return memory used by the filters (bytes). */
+    public synchronized long getMemoryUsage() {
+        return _current.getMemoryUsageBytes() +
+           (_previous == null ? 0 : _previous.getMemoryUsageBytes());
     }
-    
  }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd.bench;
+import no.polaric.aprsd.*;
+import java.util.*;
+
+
+
+/**
+ * Accuracy and speed of duplicate checking. Not part of the server. 
+ * Run with 'make bench'. 
+ *
+ * Accuracy: DuplicateChecker is filled to capacity with random keys. All
+ * of them must be found (no false negatives). Then keys that are not added 
+ * are looked up, and the false positives are counted. Memory use is reported 
+ * by the filters. 
+ *
+ * Rotation: More than capacity keys are added, and keys are added after 
+ * a period has passed. The last capacity keys added, and the keys added in 
+ * the previous period, must be found, also when they are in the previous 
+ * generation.
+ *
+ * Comparison with DupCheck: The same stream of packets (with about 1/3 
+ * duplicates, like digipeated copies) is checked with the table backend 
+ * and the cuckoo backend. The table backend is exact within its size, so 
+ * the cuckoo backend should give the same answers, except for false positives.
+ * The time per packet is reported for each backend. 
+ *
+ * Arguments (optional): capacity, number of lookups, number of packets. 
+ * The exit status is 1 if there are false negatives.
+ */
+public class DupCheckBench
+{
+    private static final double FPP = 0.0001;
+    
+    
+    
+    public static void main(String[] args)
+    {
+        int capacity = (args.length > 0 ? Integer.parseInt(args[0]) : 200000);
+        int lookups  = (args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        int packets  = (args.length > 2 ? Integer.parseInt(args[2]) : 2000000);
+        
+        int fneg = accuracy(capacity, lookups);
+        fneg += rotation(capacity);
+        fneg += compare(packets);
+        if (fneg > 0) {
+            System.out.println("FAILED: "+fneg+" false negatives");
+            System.exit(1);
+        }
+    }
+    
+    
+    
+    private static int accuracy(int capacity, int lookups) 
+    {
+        System.out.println("*** DuplicateChecker: capacity="+capacity+", fpp="+FPP);
+        Random rnd = new Random(1);
+        DuplicateChecker dc = new DuplicateChecker(capacity, FPP, 0);
+        Set<Long> added = new HashSet<Long>();
+        while (added.size() < capacity) {
+            long key = rnd.nextLong();
+            if (added.add(key))
+                dc.add(key);
+        }
+        
+        int fneg = 0;
+        for (long key : added)
+            if (!dc.contains(key))
+                fneg++;
+                
+        int fpos = 0, n = 0;
+        while (n < lookups) {
+            long key = rnd.nextLong();
+            if (added.contains(key))
+                continue;
+            n++;
+            if (dc.contains(key))
+                fpos++;
+        }
+        System.out.println("False negatives:       "+fneg+" of "+capacity);
+        System.out.println("False positives:       "+fpos+" of "+lookups
+            +String.format(" (%.1f per million)", fpos * 1e6 / lookups));
+        System.out.println("Memory (filters):      "+dc.getMemoryUsage() / 1024+" KB");
+        System.out.println();
+        return fneg;
+    }
+    
+    
+    
+    private static int rotation(int capacity) 
+    {
+        System.out.println("*** DuplicateChecker, rotation of generations");
+        Random rnd = new Random(3);
+        
+        /* By count. The last 'capacity' keys are in both generations */
+        DuplicateChecker dc = new DuplicateChecker(capacity, FPP, 0);
+        int n = capacity * 5 / 2;
+        long[] keys = new long[n];
+        for (int i=0; i<n; i++) {
+            keys[i] = rnd.nextLong();
+            dc.add(keys[i]);
+        }
+        int fneg1 = 0;
+        for (int i = n - capacity; i<n; i++)
+            if (!dc.contains(keys[i]))
+                fneg1++;
+        System.out.println("False negatives:       "+fneg1+" of last "+capacity+" after "+n+" keys");
+        
+        /* By time. Keys added in the previous period are in the previous generation */
+        long period = 1000;
+        dc = new DuplicateChecker(capacity, FPP, period);
+        long[] before = new long[capacity / 2], after = new long[capacity / 2];
+        for (int i=0; i<before.length; i++) {
+            before[i] = rnd.nextLong();
+            dc.add(before[i]);
+        }
+        try { Thread.sleep(period * 3 / 2); } 
+        catch (InterruptedException e) {}
+        for (int i=0; i<after.length; i++) {
+            after[i] = rnd.nextLong();
+            dc.add(after[i]);
+        }
+        int fneg2 = 0;
+        for (int i=0; i<before.length; i++) {
+            if (!dc.contains(before[i])) fneg2++;
+            if (!dc.contains(after[i])) fneg2++;
+        }
+        System.out.println("False negatives:       "+fneg2+" of "+(2 * before.length)+" added in two periods");
+        System.out.println();
+        return fneg1 + fneg2;
+    }
+    
+    
+    
+    /* Packets from 5000 stations. About 1/3 are copies of a recent packet */
+    private static String[][] stream(int n) 
+    {
+        Random rnd = new Random(2);
+        String[][] res = new String[n][];
+        for (int i=0; i<n; i++) {
+            if (i > 10 && rnd.nextInt(3) == 0) {
+                res[i] = res[i - 1 - rnd.nextInt(10)];
+                continue;
+            }
+            String from = "LA" + rnd.nextInt(5000) + "X";
+            String report = String.format("!%02d%05.2fN/%03d%05.2fE>%d", 
+                58 + rnd.nextInt(12), rnd.nextDouble()*60, 5 + rnd.nextInt(25), rnd.nextDouble()*60, i);
+            res[i] = new String[] {from, "APRS", report};
+        }
+        return res;
+    }
+    
+    
+    
+    private static int compare(int npackets) 
+    {
+        System.out.println("*** DupCheck, table vs. cuckoo backend: "+npackets+" packets");
+        String[][] pkts = stream(npackets);
+        
+        DupCheck table = new DupCheck(16, 50000, 75000);
+        DupCheck cuckoo = new DupCheck(50000, 75000, FPP);
+        
+        /* Same answers? */
+        int dups = 0, extra = 0, missed = 0;
+        boolean[] res = new boolean[pkts.length];
+        for (int i=0; i<pkts.length; i++) {
+            res[i] = table.checkPacket(pkts[i][0], pkts[i][1], pkts[i][2]);
+            if (res[i]) dups++;
+        }
+        for (int i=0; i<pkts.length; i++) {
+            boolean b = cuckoo.checkPacket(pkts[i][0], pkts[i][1], pkts[i][2]);
+            if (b && !res[i]) extra++;
+            if (res[i] && !b) missed++;
+        }
+        System.out.println("Duplicates (table):    "+dups);
+        System.out.println("Extra dups (cuckoo):   "+extra);
+        System.out.println("Missed dups (cuckoo):  "+missed);
+        
+        /* Speed. New checkers for each round, the first rounds are warmup */
+        for (int round = 0; round < 5; round++) {
+            DupCheck t = new DupCheck(16, 50000, 75000);
+            DupCheck c = new DupCheck(50000, 75000, FPP);
+            long t0 = System.nanoTime();
+            for (String[] p : pkts)
+                t.checkPacket(p[0], p[1], p[2]);
+            long t1 = System.nanoTime();
+            for (String[] p : pkts)
+                c.checkPacket(p[0], p[1], p[2]);
+            long t2 = System.nanoTime();
+            System.out.println(String.format("Round %d: table %.0f ns/packet, cuckoo %.0f ns/packet", 
+                round, (double) (t1 - t0) / npackets, (double) (t2 - t1) / npackets));
+        }
+        return missed;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package no.polaric.aprsd.bench;
+import no.polaric.aprsd.*;
+import java.util.*;
+import java.util.regex.*;
+import java.io.*;
+import java.nio.file.*;
+
+
+
+/**
+ * Correctness and speed of the APRS header parser (AprsPacket.fromString),
+ * compared with the regular expression it replaced. Not part of the server. 
+ * Run with 'make bench'. 
+ *
+ * The sample is a file of APRS-IS lines, one per line (e.g. recorded from 
+ * an APRS-IS server), or a small built-in set of typical lines. Both parsers 
+ * must give the same result for each line and for random variants of them. 
+ * Then the time per line is reported for each. 
+ *
+ * Arguments (optional): sample file, number of random variants.
+ * The exit status is 1 if the parsers differ.
+ */
+public class ParserBench
+{
+    private static final String[] SAMPLE = {
+        "LA7ECA-9>APRS,LA5G*,WIDE2-1,qAR,LA3FIA:!6305.12N/01024.56E>090/034/A=000456 Moving",
+        "LD9TR>APNU19,TCPIP*,qAC,T2NORWAY:!6325.73NS01024.06E#PHG5530 Digi og igate",
+        "LA1ABC-7>TSQPSU,LA5G*,WIDE1*,WIDE2-1,qAR,LA9XSA-10:`)Jfl -/>\"4=}Mobil=",
+        "la3xsa>APDR16,TCPIP*,qAC,T2SWEDEN:=6012.34N/01110.78E$ lower case calls",
+        "LA4XYZ>APRS,TCPIP*,qAC,T2BELGIUM::LA7ECA-9 :Hello there{12",
+        "OH2ABC-10>APMI06,OH2RDS*,WIDE2-1,qAR,OH2MP-5:;LA-REPEAT*111111z6012.00N/01102.00Er145.650MHz T123 -060",
+        "LB2XX>APU25N,TCPIP*,qAC,T2FINLAND:>Status text, with commas: and colons",
+        "SM0XYZ-1>APWW11,TCPIP*,qAC,T2ERRATIC:}LA2AB>APRS,TCPIP,SM0XYZ-1*:!5959.00N/01044.00E-Third party",
+        "LA9Q-2>APOT30,WIDE1-1,qAR,LA5G:T#123,045,012,000,111,222,00000000",
+        "DL1ABC>APRS,qAS,DB0XYZ-10:@181203z5231.12N/01323.45E_270/004g008t054r000p000h77b10135",
+    };
+    
+    private static final Pattern _ppat = Pattern.compile
+       ("([\\w\\-]+)>([\\w\\-]+)(((,[\\w\\-]+\\*?))*):(.*)");
+       
+       
+    /* The old parser (regular expression). Returns from, to, via and report */
+    private static String[] oldParse(String packet) 
+    {
+        packet = packet.replace('\uffff', ' ');
+        if (packet.length() < 10)
+           return null;
+        Matcher m = _ppat.matcher(packet);
+        if (!m.matches())
+            return null;
+        String via = m.group(3);
+        if (via != null) 
+            via = via.trim();
+        while (via != null && via.length() > 0 && via.charAt(0) == ',')
+            via = via.substring(1);
+        return new String[] {m.group(1).trim().toUpperCase(), m.group(2).trim().toUpperCase(), 
+            via, m.group(m.groupCount())};
+    }
+    
+    
+    private static String[] newParse(String packet) 
+    {
+        AprsPacket p = AprsPacket.fromString(packet);
+        return (p == null ? null : new String[] {p.from, p.to, p.via, p.report});
+    }
+    
+    
+    
+    public static void main(String[] args) throws IOException
+    {
+        String[] sample = (args.length > 0 
+            ? Files.readAllLines(Paths.get(args[0])).toArray(new String[0]) : SAMPLE);
+        int variants = (args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        
+        int diff = compare(sample, variants);
+        bench(sample);
+        if (diff > 0) {
+            System.out.println("FAILED: "+diff+" lines parsed differently");
+            System.exit(1);
+        }
+    }
+    
+    
+    
+    /* Compare the parsers on the sample and on random variants of it */
+    private static int compare(String[] sample, int variants) 
+    {
+        System.out.println("*** Old vs. new parser: "+sample.length+" lines, "+variants+" variants");
+        Random rnd = new Random(1);
+        String chars = ">,:*-_ aZ09\n\r\uffff";
+        int diff = 0, valid = 0;
+        for (int i=0; i < sample.length + variants; i++) {
+            String s = sample[i % sample.length];
+            if (i >= sample.length) {
+                /* Replace, insert or delete characters in the header (and a bit beyond) */
+                StringBuilder sb = new StringBuilder(s);
+                for (int k = 1 + rnd.nextInt(3); k > 0 && sb.length() > 0; k--) {
+                    int pos = rnd.nextInt(Math.min(sb.length(), 80));
+                    char c = chars.charAt(rnd.nextInt(chars.length()));
+                    switch (rnd.nextInt(3)) {
+                        case 0 -> sb.setCharAt(pos, c);
+                        case 1 -> sb.insert(pos, c);
+                        default -> sb.deleteCharAt(pos);
+                    }
+                }
+                s = sb.toString();
+            }
+            String[] a = oldParse(s), b = newParse(s);
+            if (a != null) 
+                valid++;
+            if (!Arrays.equals(a, b)) {
+                if (diff++ < 10)
+                    System.out.println("Differs: "+s.replace("\n", "\\n").replace("\r", "\\r")
+                        +"\n   old: "+Arrays.toString(a)+"\n   new: "+Arrays.toString(b));
+            }
+        }
+        System.out.println("Differences:           "+diff+" ("+valid+" valid lines)");
+        System.out.println();
+        return diff;
+    }
+    
+    
+    
+    private static void bench(String[] sample) 
+    {
+        System.out.println("*** Time per line");
+        int n = Math.max(1, 2000000 / sample.length) * sample.length;
+        long sink = 0;
+        
+        /* The first rounds are warmup */
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            for (int i=0; i<n; i++) {
+                String[] a = oldParse(sample[i % sample.length]);
+                sink += (a == null ? 0 : a[0].length());
+            }
+            long t1 = System.nanoTime();
+            for (int i=0; i<n; i++) {
+                AprsPacket p = AprsPacket.fromString(sample[i % sample.length]);
+                sink += (p == null ? 0 : p.from.length());
+            }
+            long t2 = System.nanoTime();
+            System.out.println(String.format("Round %d: regex %.0f ns/line, parser %.0f ns/line", 
+                round, (double) (t1 - t0) / n, (double) (t2 - t1) / n));
+        }
+        if (sink == 0)
+            System.out.println("No valid lines");
+    }
+}